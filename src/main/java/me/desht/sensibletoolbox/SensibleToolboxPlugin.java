@@ -54,6 +54,7 @@ import me.desht.sensibletoolbox.items.machineupgrades.ThoroughnessUpgrade;
 import me.desht.sensibletoolbox.listeners.*;
 import net.sacredlabyrinth.Phaed.PreciousStones.PreciousStones;
 import org.bukkit.Bukkit;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
@@ -155,6 +156,10 @@ public class SensibleToolboxPlugin extends JavaPlugin implements ConfigurationLi
         registerEventListeners();
         registerCommands();
 
+        for (World world : Bukkit.getWorlds()) {
+            // before any machines are loaded, so they find their cables already in a net
+            enetManager.restoreNets(world);
+        }
         try {
             LocationManager.getManager().load();
         } catch (Exception e) {
@@ -174,6 +179,8 @@ public class SensibleToolboxPlugin extends JavaPlugin implements ConfigurationLi
                 RecipeUtil.findVanillaFurnaceMaterials();
                 RecipeUtil.setupRecipes();
                 RecipeBook.buildRecipes();
+                // any block types other plugins are going to register at startup have been registered by now
+                LocationManager.getManager().dropDeferredRows();
             }
         });
 
@@ -222,6 +229,7 @@ public class SensibleToolboxPlugin extends JavaPlugin implements ConfigurationLi
         if (soundMufflerListener != null) {
             soundMufflerListener.clear();
         }
+        enetManager.shutdown();
         LocationManager.getManager().save();
         LocationManager.getManager().shutdown();
 
@@ -390,6 +398,8 @@ public class SensibleToolboxPlugin extends JavaPlugin implements ConfigurationLi
         cmds.registerCommand(new FriendCommand());
         cmds.registerCommand(new UnfriendCommand());
         cmds.registerCommand(new ValidateCommand());
+        cmds.registerCommand(new StorageCommand());
+        cmds.registerCommand(new TimingsCommand());
     }
 
     @Override
@@ -411,8 +421,16 @@ public class SensibleToolboxPlugin extends JavaPlugin implements ConfigurationLi
     public Object onConfigurationValidate(ConfigurationManager configurationManager, String key, Object oldVal, Object newVal) {
         if (key.equals("save_interval")) {
             DHValidate.isTrue((Integer) newVal > 0, "save_interval must be > 0");
+        } else if (key.equals("save_budget_ns")) {
+            DHValidate.isTrue(((Number) newVal).longValue() >= 0, "save_budget_ns must be >= 0");
+        } else if (key.equals("tick_budget_ns")) {
+            DHValidate.isTrue(((Number) newVal).longValue() >= 0, "tick_budget_ns must be >= 0");
+        } else if (key.equals("tick_phase_period")) {
+            DHValidate.isTrue((Integer) newVal > 0, "tick_phase_period must be > 0");
         } else if (key.equals("energy.tick_rate")) {
             DHValidate.isTrue((Integer) newVal > 0, "energy.tick_rate must be > 0");
+        } else if (key.equals("energy.max_net_size")) {
+            DHValidate.isTrue((Integer) newVal > 0, "energy.max_net_size must be > 0");
         } else if (key.startsWith("gui.texture.")) {
             STBUtil.parseMaterialSpec(newVal.toString());
         } else if (key.equals("inventory_protection")) {
@@ -454,8 +472,18 @@ public class SensibleToolboxPlugin extends JavaPlugin implements ConfigurationLi
             }
         } else if (key.equals("save_interval")) {
             LocationManager.getManager().setSaveInterval((Integer) newVal);
+        } else if (key.equals("save_budget_ns")) {
+            LocationManager.getManager().setSaveBudget(((Number) newVal).longValue());
+        } else if (key.equals("tick_budget_ns")) {
+            LocationManager.getManager().setTickBudget(((Number) newVal).longValue());
+        } else if (key.equals("tick_phase_period")) {
+            LocationManager.getManager().setTickPhasePeriod((Integer) newVal);
+        } else if (key.equals("tick_profiler")) {
+            LocationManager.getManager().setTickProfiling((Boolean) newVal);
         } else if (key.equals("energy.tick_rate")) {
             scheduleEnergyNetTicker();
+        } else if (key.equals("energy.max_net_size")) {
+            enetManager.setMaxNetSize((Integer) newVal);
         } else if (key.startsWith("gui.texture.")) {
             STBInventoryGUI.buildStockTextures();
         } else if (key.equals("inventory_protection")) {
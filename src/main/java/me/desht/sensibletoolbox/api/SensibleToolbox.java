@@ -7,11 +7,13 @@ import me.desht.sensibletoolbox.api.items.BaseSTBItem;
 import me.desht.sensibletoolbox.api.util.BlockProtection;
 import me.desht.sensibletoolbox.core.storage.LocationManager;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.Plugin;
 
+import java.util.Collection;
 import java.util.UUID;
 
 /**
@@ -108,6 +110,18 @@ public class SensibleToolbox {
         return LocationManager.getManager().get(location, type, checkSign);
     }
 
+    /**
+     * Get all the STB blocks in the given chunk.  The returned collection is
+     * a read-only view onto STB's own index, and should be iterated over
+     * straight away rather than held on to.
+     *
+     * @param chunk the chunk to check
+     * @return a read-only collection of the STB blocks in the chunk
+     */
+    public static Collection<BaseSTBBlock> getBlocksInChunk(Chunk chunk) {
+        return LocationManager.getManager().getBlocksInChunk(chunk.getWorld(), chunk.getX(), chunk.getZ());
+    }
+
     /**
      * Given a UUID, attempt to get the player name for that UUID.  This will
      * only succeed if that player has previously connected to this server,
@@ -7,6 +7,22 @@ package me.desht.sensibletoolbox.api.energy;
 public interface EnergyNet {
     void findSourcesAndSinks();
 
+    /**
+     * Notify this energy net that something which affects its energy flow
+     * has changed, e.g. a machine's charge has been changed other than by
+     * the net itself.  A net with no supply or no demand stops recalculating
+     * its energy flow until it's notified of a change.
+     */
+    void wakeUp();
+
+    /**
+     * Check if this energy net is quiescent; it had no supply or no demand
+     * when last recalculated, and nothing has changed since then.
+     *
+     * @return true if the net is quiescent
+     */
+    boolean isQuiescent();
+
     /**
      * Get the energy net ID for this energy net.
      *
@@ -79,6 +79,22 @@ public abstract class AbstractIOMachine extends AbstractProcessingMachine {
         super.onServerTick();
     }
 
+    @Override
+    protected boolean isIdle() {
+        if (hasItemsToEject()) {
+            return false;
+        }
+        if (!pendingItems.isEmpty() || getProcessing() != null && getProgress() <= 0) {
+            // finished items can only wait for space in the output
+            return isJammed();
+        }
+        if (getProcessing() != null) {
+            // stalled until some charge arrives
+            return getCharge() == 0;
+        }
+        return !isRedstoneActive() || !hasInputItems();
+    }
+
     @Override
     public void onBlockUnregistered(Location loc) {
         for (ItemStack stack : pendingItems) {
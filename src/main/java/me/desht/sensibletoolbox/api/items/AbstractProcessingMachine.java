@@ -201,6 +201,24 @@ public abstract class AbstractProcessingMachine extends BaseSTBMachine {
         setEjectionInterval(ejectFailed ? 20 : 1);
     }
 
+    /**
+     * Check if this machine has an ejector upgrade and any items in its
+     * output slot(s) for it to eject.
+     *
+     * @return true if there are items waiting to be auto-ejected
+     */
+    protected boolean hasItemsToEject() {
+        if (getAutoEjectDirection() == null || getAutoEjectDirection() == BlockFace.SELF) {
+            return false;
+        }
+        for (int slot : getOutputSlots()) {
+            if (getInventoryItem(slot) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean autoEject(ItemStack result) {
         Location loc = getRelativeLocation(getAutoEjectDirection());
         Block target = loc.getBlock();
@@ -11,6 +11,7 @@ import me.desht.sensibletoolbox.api.SensibleToolbox;
 import me.desht.sensibletoolbox.api.energy.ChargeableBlock;
 import me.desht.sensibletoolbox.api.gui.InventoryGUI;
 import me.desht.sensibletoolbox.api.gui.STBGUIHolder;
+import me.desht.sensibletoolbox.api.util.BukkitSerialization;
 import me.desht.sensibletoolbox.api.util.STBUtil;
 import me.desht.sensibletoolbox.core.storage.LocationManager;
 import org.apache.commons.lang.Validate;
@@ -30,6 +31,8 @@ import org.bukkit.metadata.FixedMetadataValue;
 import org.bukkit.util.ChatPaginator;
 
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -42,7 +45,7 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
     private boolean needToScanSigns;
     private PersistableLocation persistableLocation;
     private BlockFace facing;
-    private long ticksLived;
+    private long tickBase = -1;  // global tick count when this block started ticking
     private InventoryGUI inventoryGUI = null;
     private final STBGUIHolder guiHolder = new STBGUIHolder(this);
     private RedstoneBehaviour redstoneBehaviour;
@@ -52,13 +55,14 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
     private int lastPower;
     private boolean pulsing;
     private boolean pendingRemoval;
+    private boolean asleep;  // true while taken off the tick schedule for lack of work
+    private Map<String, ItemStack[]> snapshotItems;  // non-null only while a snapshot is being taken
 
     protected BaseSTBBlock() {
         super();
         setFacing(BlockFace.SELF);
         redstoneBehaviour = SensibleToolbox.getPluginInstance().getConfigCache().getDefaultRedstone();
         accessControl = SensibleToolbox.getPluginInstance().getConfigCache().getDefaultAccess();
-        ticksLived = 0;
         needToScanSigns = false;
     }
 
@@ -70,7 +74,6 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
         }
         redstoneBehaviour = RedstoneBehaviour.valueOf(conf.getString("redstoneBehaviour", "IGNORE"));
         accessControl = AccessControl.valueOf(conf.getString("accessControl", "PUBLIC"));
-        ticksLived = 0;
         needToScanSigns = !conf.contains("labels");  // coming from pre-v0.0.4
         byte faces = (byte) conf.getInt("labels", 0);
         labelSigns.or(BitSet.valueOf(new byte[] { faces }));
@@ -89,6 +92,62 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
         return conf;
     }
 
+    /**
+     * Define whether this block supports state snapshots, allowing its
+     * persisted form to be built off the main server thread.  A block which
+     * returns true here must ensure that its {@link #freeze()} method only
+     * stores freshly-created values (strings, numbers, new lists...) in the
+     * returned configuration, and uses
+     * {@link #freezeItems(org.bukkit.configuration.ConfigurationSection, String, org.bukkit.inventory.ItemStack...)}
+     * for any item stacks it needs to persist.  The default is false, even
+     * for machines; an override is inherited, so a subclass which adds to
+     * {@link #freeze()} must be checked as well.
+     *
+     * @return true if this block supports snapshots; false otherwise
+     */
+    protected boolean supportsSnapshot() {
+        return false;
+    }
+
+    /**
+     * Take an immutable snapshot of this block's persistable state.  This
+     * must be called from the main server thread, but the resulting
+     * snapshot may be serialized from any thread.
+     *
+     * @return a snapshot of the block's state, or null if this block doesn't
+     * support snapshots (see {@link #supportsSnapshot()})
+     */
+    public final BlockSnapshot takeSnapshot() {
+        if (!supportsSnapshot()) {
+            return null;
+        }
+        snapshotItems = new HashMap<String, ItemStack[]>();
+        try {
+            return new BlockSnapshot(freeze(), snapshotItems);
+        } finally {
+            snapshotItems = null;
+        }
+    }
+
+    /**
+     * Store some item stacks in a frozen configuration, in the format used by
+     * {@link me.desht.sensibletoolbox.api.util.BukkitSerialization}.  If a
+     * snapshot is being taken, the items are copied into the snapshot and
+     * encoded later, off the main thread.  Call this from your
+     * {@link #freeze()} method.
+     *
+     * @param conf the configuration being frozen
+     * @param key the key to store the items under
+     * @param items the items to store; may contain nulls
+     */
+    protected final void freezeItems(ConfigurationSection conf, String key, ItemStack... items) {
+        if (snapshotItems != null) {
+            snapshotItems.put(conf.getCurrentPath().isEmpty() ? key : conf.getCurrentPath() + "." + key, items);
+        } else {
+            conf.set(key, BukkitSerialization.toBase64(items));
+        }
+    }
+
     /**
      * Get this block's current redstone behaviour; whether it ignores the presence of a redstone signal,
      * or requires the signal to be low or high to operate.
@@ -107,6 +166,7 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
      */
     public final void setRedstoneBehaviour(RedstoneBehaviour redstoneBehaviour) {
         this.redstoneBehaviour = redstoneBehaviour;
+        wakeUp();
         update(false);
     }
 
@@ -198,14 +258,68 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
     }
 
     /**
-     * Get the number of ticks since this block was placed in the world.  This
-     * will return 0 if called on a block which has not yet been placed, or
-     * on a block whose {@link #getTickRate()} method returns 0.
+     * Get the number of ticks since this block was placed in the world (or
+     * loaded from persisted data).  This will return 0 if called on a block
+     * which has not yet been placed, or on a block whose
+     * {@link #getTickRate()} method returns 0.
+     * <p/>
+     * To spread the load of ticking blocks, the count may start at a phase
+     * offset of up to the block's tick rate, or up to the configured tick
+     * phase period (20 by default) for faster-ticking blocks, so that checks
+     * such as <code>getTicksLived() % 20 == 0</code> don't fire for all
+     * blocks on the same tick.  This isn't done if the block's
+     * {@link #hasFixedTickPhase()} method returns true.  Either way, it's
+     * always a multiple of the tick rate when {@link #onServerTick()} is
+     * called.
      *
      * @return the number of ticks lived
      */
     public final long getTicksLived() {
-        return ticksLived;
+        return tickBase < 0 ? 0 : LocationManager.getManager().getTickCount() - tickBase;
+    }
+
+    /**
+     * This method should not be called directly.  It is automatically called
+     * when the block is added to the location manager's set of ticking
+     * blocks, and when its ticking is delayed by the tick time budget.
+     *
+     * @param tickBase the global tick count at this point
+     */
+    public final void startTicking(LocationManager.BlockAccess blockAccess, long tickBase) {
+        Validate.notNull(blockAccess, "Don't call this method directly");
+        this.tickBase = tickBase;
+    }
+
+    /**
+     * This method should not be called directly.  It is automatically called
+     * when the location manager puts the block to sleep or wakes it up.
+     *
+     * @param asleep true if the block is asleep
+     */
+    public final void setAsleep(LocationManager.BlockAccess blockAccess, boolean asleep) {
+        Validate.notNull(blockAccess, "Don't call this method directly");
+        this.asleep = asleep;
+    }
+
+    /**
+     * Check if this block is currently asleep; off the tick schedule until
+     * something calls {@link #wakeUp()}.
+     *
+     * @return true if the block is asleep
+     */
+    public final boolean isAsleep() {
+        return asleep;
+    }
+
+    /**
+     * Put this block back on the tick schedule, if it's asleep.  Call this
+     * whenever something happens which could give a sleeping block work to
+     * do.  It's cheap to call if the block is awake.
+     */
+    public final void wakeUp() {
+        if (asleep) {
+            LocationManager.getManager().wakeTicker(this);
+        }
     }
 
     /**
@@ -315,6 +429,7 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
         int power = event.getBlock().getBlockPower();
         if (power != lastPower) {
             Debugger.getInstance().debug(this + " redstone power change: " + lastPower + "->" + power);
+            wakeUp();
             onRedstonePowerChanged(lastPower, power);
             if (lastPower == 0 && power > 0 && getRedstoneBehaviour() == RedstoneBehaviour.PULSED) {
                 pulsing = true;
@@ -384,17 +499,9 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
     }
 
     /**
-     * This method should not be called directly.  It is automatically called
-     * every tick for every block placed in the world for which
-     * {@link #getTickRate()} returns a non-zero value.
-     */
-    public final void tick() {
-        ticksLived++;
-    }
-
-    /**
-     * Called every tick for each STB block that is placed in the world, for
-     * any STB block where {@link #getTickRate()} returns a non-zero value.
+     * Called every {@link #getTickRate()} ticks for each STB block that is
+     * placed in the world, for any STB block where {@link #getTickRate()}
+     * returns a non-zero value.
      * Override this method to define any periodic behaviour of the block.
      */
     public void onServerTick() {
@@ -410,6 +517,32 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
         return 0;
     }
 
+    /**
+     * Check if this block's ticks must stay in step with the time it was
+     * placed or loaded.  By default, ticking blocks may be given a phase
+     * offset (see {@link #getTicksLived()}) to spread the load of ticking
+     * many blocks with the same tick rate.  Override this to return true if
+     * the block's behaviour depends on exactly when it ticks.
+     *
+     * @return true if the block's tick phase must not be offset
+     */
+    public boolean hasFixedTickPhase() {
+        return false;
+    }
+
+    /**
+     * Check if this block has no work to do, so it can be taken off the tick
+     * schedule until {@link #wakeUp()} is called.  This is checked after each
+     * call to {@link #onServerTick()}.  By default, blocks never sleep;
+     * override this to return true only when nothing but an event which
+     * calls {@link #wakeUp()} could give the block work to do.
+     *
+     * @return true if the block can go to sleep
+     */
+    public boolean canSleep() {
+        return false;
+    }
+
 //    /**
 //     * Called when the chunk that an STB block is in gets loaded.
 //     */
@@ -600,6 +733,39 @@ public abstract class BaseSTBBlock extends BaseSTBItem {
         onBlockRegistered(location, isPlacing);
     }
 
+    /**
+     * Don't call this method directly; it is implicitly called when the
+     * chunk containing this block is unloaded, and blocks are being loaded
+     * lazily (see the <em>database.lazy_chunk_loading</em> config setting).
+     * The block's state has already been persisted at this point; this
+     * object will be discarded, and a new one created from the persisted
+     * data when the chunk is next loaded.  Override
+     * {@link #onBlockUnloaded(org.bukkit.Location)} if you need to run a
+     * specific task on unloading.
+     *
+     * @param location the location of the block being unloaded
+     */
+    public final void unloadBlock(LocationManager.BlockAccess blockAccess, Location location) {
+        Validate.notNull(blockAccess, "Don't call this method directly");
+        onBlockUnloaded(location);
+        for (RelativePosition pos : getBlockStructure()) {
+            getAuxiliaryBlock(location, pos).removeMetadata(STB_MULTI_BLOCK, SensibleToolboxPlugin.getInstance());
+        }
+        location.getBlock().removeMetadata(BaseSTBBlock.STB_BLOCK, SensibleToolboxPlugin.getInstance());
+    }
+
+    /**
+     * Called when an STB block is being removed from memory because its
+     * chunk is being unloaded.  Unlike
+     * {@link #onBlockUnregistered(org.bukkit.Location)}, the block still
+     * exists in the world; use this method to detach the block from any
+     * other objects which refer to it, but don't drop any items.
+     *
+     * @param location location of the base (primary) block of this STB block
+     */
+    public void onBlockUnloaded(Location location) {
+    }
+
     /**
      * Called when an STB block has been broken and is being unregistered. The
      * block's location and GUI (if any) are still valid at this point, but
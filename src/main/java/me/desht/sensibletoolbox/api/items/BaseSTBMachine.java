@@ -113,8 +113,8 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
         conf.set("upgrades", upg);
 
         if (getGUI() != null) {
-            conf.set("inputSlots", getGUI().freezeSlots(getInputSlots()));
-            conf.set("outputSlots", getGUI().freezeSlots(getOutputSlots()));
+            freezeItems(conf, "inputSlots", getSlotContents(getInputSlots()));
+            freezeItems(conf, "outputSlots", getSlotContents(getOutputSlots()));
         }
         if (installedCell != null) {
             conf.set("energyCell", installedCell.getItemTypeID());
@@ -123,6 +123,14 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
         return conf;
     }
 
+    private ItemStack[] getSlotContents(int[] slots) {
+        ItemStack[] stacks = new ItemStack[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            stacks[i] = getInventoryItem(slots[i]);
+        }
+        return stacks;
+    }
+
     /**
      * Define the inventory slots which may be used for placing items into this
      * machine.
@@ -257,6 +265,8 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
      */
     public final void setChargeDirection(ChargeDirection chargeDirection) {
         this.chargeDirection = chargeDirection;
+        wakeUp();
+        wakeEnergyNets();
         update(false);
     }
 
@@ -274,6 +284,8 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
         this.charge = Math.min(getMaxCharge(), Math.max(0, charge));
 
         if (isPlaced()) {
+            wakeUp();
+            wakeEnergyNets();
             if (this.charge == 0) {
                 onOutOfCharge();
             }
@@ -366,6 +378,7 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
     protected void setInventoryItem(int slot, ItemStack item) {
         Validate.isTrue(getGUI().getSlotType(slot) == InventoryGUI.SlotType.ITEM, "Attempt to insert item into non-item slot");
         getInventory().setItem(slot, item != null && item.getAmount() > 0 ? item : null);
+        wakeUp();
         update(false);
     }
 
@@ -516,6 +529,8 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
         if (event.getAction() == Action.RIGHT_CLICK_BLOCK && !event.getPlayer().isSneaking()) {
             if (getGUI() != null) {
                 // gui shouldn't ever be null, but let's be defensive
+                // the machine stays awake while anyone is viewing it (see canSleep())
+                wakeUp();
                 getGUI().show(event.getPlayer());
             }
             event.setCancelled(true);
@@ -530,6 +545,13 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
         super.onBlockRegistered(location, isPlacing);
     }
 
+    @Override
+    public void onBlockUnloaded(Location loc) {
+        SensibleToolboxPlugin.getInstance().getEnergyNetManager().onMachineRemoved(this);
+
+        super.onBlockUnloaded(loc);
+    }
+
     @Override
     public void onBlockUnregistered(Location loc) {
         getGUI().ejectItems(getInputSlots());
@@ -636,6 +658,20 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
         return isSlotIn(slot, getUpgradeSlots());
     }
 
+    /**
+     * Check if there are any items in this machine's input slot(s).
+     *
+     * @return true if any input slot is non-empty
+     */
+    protected boolean hasInputItems() {
+        for (int slot : getInputSlots()) {
+            if (getInventoryItem(slot) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean isSlotIn(int slot, int[] slots) {
         for (int s1 : slots) {
             if (s1 == slot) {
@@ -738,6 +774,7 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
 
     @Override
     public boolean onSlotClick(HumanEntity player, int slot, ClickType click, ItemStack inSlot, ItemStack onCursor) {
+        wakeUp();
         if (isInputSlot(slot)) {
             if (onCursor.getType() != Material.AIR && !acceptsItemType(onCursor)) {
                 return false;
@@ -776,6 +813,7 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
 
     @Override
     public int onShiftClickInsert(HumanEntity player, int slot, ItemStack toInsert) {
+        wakeUp();
         BaseSTBItem item = SensibleToolbox.getItemRegistry().fromItemStack(toInsert);
 
         if (getUpgradeSlots().length > 0 && isValidUpgrade(player, item)) {
@@ -847,6 +885,7 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
     @Override
     public boolean onShiftClickExtract(HumanEntity player, int slot, ItemStack toExtract) {
         // allow extraction to continue in all cases
+        wakeUp();
         if (slot == getEnergyCellSlot() && toExtract != null) {
             installEnergyCell(null);
         } else if (isUpgradeSlot(slot)) {
@@ -926,6 +965,7 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
 
     private void installEnergyCell(EnergyCell cell) {
         installedCell = cell;
+        wakeUp();
         Debugger.getInstance().debug("installed energy cell " + cell + " in " + this);
         update(false);
     }
@@ -935,6 +975,29 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
         return 1;
     }
 
+    /**
+     * Check if this machine has no work to do, and nothing can change that
+     * except for items being inserted or extracted, charge arriving or
+     * leaving, a redstone signal change, or an upgrade change.  An idle
+     * machine is taken off the tick schedule until one of those happens.
+     * By default, machines are never idle; override this to allow a
+     * machine to sleep.
+     * <p/>
+     * A machine with an energy cell installed, or with any players viewing
+     * its GUI, never sleeps, whatever this method returns.
+     *
+     * @return true if the machine is idle
+     */
+    protected boolean isIdle() {
+        return false;
+    }
+
+    @Override
+    public boolean canSleep() {
+        return !needToProcessUpgrades && installedCell == null
+                && getGUI() != null && getGUI().getViewers().isEmpty() && isIdle();
+    }
+
     @Override
     public void onServerTick() {
         if (getTicksLived() % SensibleToolboxPlugin.getInstance().getEnergyNetManager().getTickRate() == 0) {
@@ -1000,6 +1063,16 @@ public abstract class BaseSTBMachine extends BaseSTBBlock implements ChargeableB
         }
     }
 
+    /**
+     * Let any attached energy nets know that this machine's charge or
+     * charge direction has changed, in case they've gone quiescent.
+     */
+    private void wakeEnergyNets() {
+        for (EnergyNet net : energyNets.values()) {
+            net.wakeUp();
+        }
+    }
+
     @Override
     public EnergyNet[] getAttachedEnergyNets() {
         Set<EnergyNet> nets = new HashSet<EnergyNet>();
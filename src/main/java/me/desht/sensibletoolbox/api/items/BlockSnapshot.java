@@ -0,0 +1,61 @@
+package me.desht.sensibletoolbox.api.items;
+
+import me.desht.sensibletoolbox.api.util.BukkitSerialization;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable capture of an STB block's persistable state, taken on the
+ * main server thread by {@link BaseSTBBlock#takeSnapshot()}.  Turning the
+ * snapshot into its persisted form (which involves encoding any captured
+ * items and emitting YAML) is safe to do from any thread.
+ */
+public final class BlockSnapshot {
+    private final YamlConfiguration conf;
+    private final Map<String, ItemStack[]> items;
+
+    BlockSnapshot(YamlConfiguration conf, Map<String, ItemStack[]> items) {
+        this.conf = conf;
+        this.items = new HashMap<String, ItemStack[]>(items.size());
+        for (Map.Entry<String, ItemStack[]> entry : items.entrySet()) {
+            ItemStack[] stacks = entry.getValue();
+            ItemStack[] copies = new ItemStack[stacks.length];
+            for (int i = 0; i < stacks.length; i++) {
+                copies[i] = stacks[i] == null ? null : stacks[i].clone();
+            }
+            this.items.put(entry.getKey(), copies);
+        }
+    }
+
+    /**
+     * Get the persisted form of this snapshot; the same string that
+     * <code>block.freeze().saveToString()</code> would have returned at
+     * the time the snapshot was taken.
+     *
+     * @return the serialized block state
+     */
+    public String serialize() {
+        return toConfiguration().saveToString();
+    }
+
+    /**
+     * Get the configuration for this snapshot, with any captured items
+     * encoded; the same configuration that <code>block.freeze()</code>
+     * would have returned at the time the snapshot was taken.  The returned
+     * object should not be modified.
+     *
+     * @return the frozen block state
+     */
+    public synchronized YamlConfiguration toConfiguration() {
+        if (!items.isEmpty()) {
+            for (Map.Entry<String, ItemStack[]> entry : items.entrySet()) {
+                conf.set(entry.getKey(), BukkitSerialization.toBase64(entry.getValue()));
+            }
+            items.clear();
+        }
+        return conf;
+    }
+}
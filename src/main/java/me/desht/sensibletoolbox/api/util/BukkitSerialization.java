@@ -30,16 +30,33 @@ public class BukkitSerialization {
         else if (maxItems > inventory.getSize())
             maxItems = inventory.getSize();
 
+        ItemStack[] stacks = new ItemStack[maxItems];
+        for (int i = 0; i < maxItems; i++) {
+            stacks[i] = inventory.getItem(i);
+        }
+        return toBase64(stacks);
+    }
+
+    /**
+     * Serialize an array of item stacks, in the same format as an inventory
+     * of the same size.  The result can be deserialized with
+     * {@link #fromBase64(String)}.  Since no Bukkit inventory is created,
+     * this may be called from a thread other than the main server thread,
+     * provided that the stacks are not being modified elsewhere.
+     *
+     * @param stacks the item stacks; may contain nulls
+     * @return a base64-encoded string
+     */
+    public static String toBase64(ItemStack[] stacks) {
         try {
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
             BukkitObjectOutputStream dataOutput = new BukkitObjectOutputStream(outputStream);
 
             // Write the size of the inventory
-            dataOutput.writeInt(maxItems);
+            dataOutput.writeInt(stacks.length);
 
             // Save every element in the list
-            for (int i = 0; i < maxItems; i++) {
-                ItemStack stack = inventory.getItem(i);
+            for (ItemStack stack : stacks) {
                 Attributes attributes = stack == null ? null : new Attributes(stack);
                 dataOutput.writeObject(stack);
                 if (attributes != null) {
@@ -114,21 +114,24 @@ public class ItemRouter extends BaseSTBBlock implements STBInventoryHolder {
         YamlConfiguration conf = super.freeze();
 
         if (getGUI() != null) {
-            Inventory modInv = Bukkit.createInventory(null, 9);
-            for (int i = 0; i < 9; i++) {
-                modInv.setItem(i, getGUI().getItem(MOD_SLOT_START + i));
+            ItemStack[] mods = new ItemStack[MOD_SLOT_COUNT];
+            for (int i = 0; i < MOD_SLOT_COUNT; i++) {
+                mods[i] = getGUI().getItem(MOD_SLOT_START + i);
             }
-            conf.set("moduleList", BukkitSerialization.toBase64(modInv));
+            freezeItems(conf, "moduleList", mods);
         } else {
             conf.set("moduleList", "");
         }
 
-        Inventory bufferInv = Bukkit.createInventory(null, 9);
-        bufferInv.setItem(0, getBufferItem());
-        conf.set("buffer", BukkitSerialization.toBase64(bufferInv, 1));
+        freezeItems(conf, "buffer", getBufferItem());
         return conf;
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public MaterialData getMaterialData() {
         return md;
@@ -137,6 +137,12 @@ public class RedstoneClock extends BaseSTBBlock {
         return 1;
     }
 
+    @Override
+    public boolean hasFixedTickPhase() {
+        // the clock's interval counts from when it was placed
+        return true;
+    }
+
     @Override
     public void onServerTick() {
         Location loc = getLocation();
@@ -61,6 +61,11 @@ public class AutoBuilder extends BaseSTBMachine {
         return conf;
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public int[] getInputSlots() {
         return new int[] { 38, 39, 40, 41, 42, 47, 48, 49, 50, 51 };
@@ -58,6 +58,11 @@ public class BasicSolarCell extends BaseSTBMachine implements LightMeterHolder {
         return conf;
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public int[] getInputSlots() {
         return new int[] { 1 };
@@ -65,14 +65,17 @@ public class BigStorageUnit extends AbstractProcessingMachine {
     @Override
     public YamlConfiguration freeze() {
         YamlConfiguration conf = super.freeze();
-        Inventory inv = Bukkit.createInventory(null, 9);
-        inv.setItem(0, stored);
-        conf.set("stored", BukkitSerialization.toBase64(inv, 1));
+        freezeItems(conf, "stored", stored);
         conf.set("amount", storageAmount);
         conf.set("locked", locked);
         return conf;
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     public void setStorageAmount(int storageAmount) {
         this.storageAmount = Math.max(0, storageAmount);
     }
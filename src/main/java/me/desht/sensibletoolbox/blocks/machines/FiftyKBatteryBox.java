@@ -19,6 +19,11 @@ public class FiftyKBatteryBox extends BatteryBox {
         super(conf);
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public MaterialData getMaterialData() {
         return md;
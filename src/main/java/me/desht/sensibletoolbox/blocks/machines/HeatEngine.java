@@ -59,6 +59,11 @@ public class HeatEngine extends Generator {
         slowBurnThreshold = getMaxCharge() * 0.75;
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public int[] getInputSlots() {
         return new int[]{10};
@@ -203,6 +208,15 @@ public class HeatEngine extends Generator {
         super.onServerTick();
     }
 
+    @Override
+    protected boolean isIdle() {
+        if (!isRedstoneActive()) {
+            return true;
+        }
+        // a full buffer only changes when charge is drawn off, which wakes the engine
+        return getProcessing() == null && (getCharge() >= getMaxCharge() || !hasInputItems());
+    }
+
     private double getBurnRate() {
         if (getCharge() < slowBurnThreshold) {
             return 1.0;
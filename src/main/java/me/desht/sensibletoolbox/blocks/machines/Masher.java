@@ -27,6 +27,11 @@ public class Masher extends AbstractIOMachine {
         super(conf);
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public void addCustomRecipes(CustomRecipeManager crm) {
         ItemStack whiteDye = STBUtil.makeColouredMaterial(Material.INK_SACK, DyeColor.WHITE).toItemStack(5);
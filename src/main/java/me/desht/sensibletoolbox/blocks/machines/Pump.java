@@ -27,6 +27,11 @@ public class Pump extends AbstractProcessingMachine {
         super(conf);
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public int getTickRate() {
         return 5;
@@ -193,6 +198,18 @@ public class Pump extends AbstractProcessingMachine {
         super.onServerTick();
     }
 
+    @Override
+    protected boolean isIdle() {
+        if (hasItemsToEject()) {
+            return false;
+        }
+        if (getProcessing() != null) {
+            return getProgress() <= 0 ? isJammed() : getCharge() == 0;
+        }
+        // with a bucket ready, keep looking for a liquid source to appear
+        return !isRedstoneActive() || !hasInputItems();
+    }
+
     private Block findNextBlockToPump() {
         // TODO: for lava pumping, we need to seek the next available lava source block
         return getRelativeLocation(pumpFace).getBlock();
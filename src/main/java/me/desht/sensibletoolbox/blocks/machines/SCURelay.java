@@ -61,6 +61,11 @@ public class SCURelay extends BatteryBox {
         return conf;
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public MaterialData getMaterialData() {
         return md;
@@ -325,6 +330,21 @@ public class SCURelay extends BatteryBox {
         worldID = location.getWorld().getUID();
     }
 
+    @Override
+    public void onBlockUnloaded(Location loc) {
+        RelayData relayData = (RelayData) getTracker().get(relayId);
+        if (relayData != null) {
+            if (this.equals(relayData.block1)) {
+                relayData.block1 = null;
+            } else if (this.equals(relayData.block2)) {
+                relayData.block2 = null;
+            }
+        }
+        worldID = null;
+
+        super.onBlockUnloaded(loc);
+    }
+
     @Override
     public void onBlockUnregistered(Location loc) {
         getGUI().setItem(TRANSPONDER_SLOT, null);
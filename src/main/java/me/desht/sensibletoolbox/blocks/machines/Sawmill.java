@@ -29,6 +29,11 @@ public class Sawmill extends AbstractIOMachine {
         super(conf);
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public void addCustomRecipes(CustomRecipeManager crm) {
         for (TreeSpecies species : TreeSpecies.values()) {
@@ -41,6 +41,11 @@ public class Smelter extends AbstractIOMachine {
         super(conf);
     }
 
+    @Override
+    protected boolean supportsSnapshot() {
+        return true;
+    }
+
     @Override
     public void addCustomRecipes(CustomRecipeManager crm) {
         // add a corresponding smelter recipe for every known vanilla furnace recipe
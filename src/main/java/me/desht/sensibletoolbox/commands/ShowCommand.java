@@ -3,11 +3,13 @@ package me.desht.sensibletoolbox.commands;
 import com.google.common.base.Joiner;
 import me.desht.dhutils.*;
 import me.desht.dhutils.commands.AbstractCommand;
+import me.desht.sensibletoolbox.SensibleToolboxPlugin;
 import me.desht.sensibletoolbox.api.SensibleToolbox;
 import me.desht.sensibletoolbox.api.items.BaseSTBBlock;
 import me.desht.sensibletoolbox.api.items.BaseSTBItem;
 import me.desht.sensibletoolbox.api.util.BukkitSerialization;
 import me.desht.sensibletoolbox.api.util.STBUtil;
+import me.desht.sensibletoolbox.core.energy.EnergyNetManager;
 import me.desht.sensibletoolbox.core.storage.LocationManager;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
@@ -47,6 +49,14 @@ public class ShowCommand extends AbstractCommand {
             long avg = LocationManager.getManager().getAverageTimePerTick();
             double pct = avg / 200000.0;
             pager.add(avg + " ns/tick (" + pct + "%) spent in ticking STB blocks");
+            pager.add("Tick budget: " + LocationManager.getManager().getDeferralSummary());
+            pager.add(LocationManager.getManager().countSleepingTickers() + " of " +
+                    LocationManager.getManager().countTickers() + " ticking blocks asleep");
+            EnergyNetManager enetManager = ((SensibleToolboxPlugin) plugin).getEnergyNetManager();
+            int nQuiescent = enetManager.countQuiescentNets();
+            pager.add(enetManager.getNetCount() + " energy nets: " + (enetManager.getNetCount() - nQuiescent)
+                    + " active, " + nQuiescent + " parked (no supply or no demand)");
+            pager.add(LocationManager.getManager().getSuppressedWriteCount() + " unchanged block updates skipped by DB writer");
         } else if (getBooleanOption("dump")) {
             dumpItemData(plugin, sender);
         } else {
@@ -0,0 +1,52 @@
+package me.desht.sensibletoolbox.commands;
+
+import me.desht.dhutils.MessagePager;
+import me.desht.dhutils.MiscUtil;
+import me.desht.dhutils.commands.AbstractCommand;
+import me.desht.sensibletoolbox.core.storage.LocationManager;
+import me.desht.sensibletoolbox.core.storage.StorageMetrics;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+
+public class StorageCommand extends AbstractCommand {
+    private static final int MAX_TYPES = 10;
+
+    public StorageCommand() {
+        super("stb storage", 0, 0);
+        setPermissionNode("stb.commands.storage");
+        setUsage("/<command> storage [-reset]");
+        setOptions("reset");
+    }
+
+    @Override
+    public boolean execute(Plugin plugin, CommandSender sender, String[] args) {
+        StorageMetrics metrics = LocationManager.getManager().getMetrics();
+        if (getBooleanOption("reset")) {
+            metrics.reset();
+            MiscUtil.statusMessage(sender, "STB storage metrics have been reset");
+            return true;
+        }
+
+        MessagePager pager = MessagePager.getPager(sender).clear();
+        pager.add(ChatColor.AQUA + "STB storage pipeline:");
+        pager.add("Queue depth: " + metrics.getQueueDepth() + " (peak " + metrics.getPeakQueueDepth() + ")");
+        pager.add(String.format("Saves: %d, avg %.1f records per save, max %d",
+                metrics.getSaveCount(), metrics.getAverageRecordsPerSave(), metrics.getMaxRecordsPerSave()));
+        pager.add("Upsert: " + metrics.getUpsertTime());
+        pager.add("Delete: " + metrics.getDeleteTime());
+        pager.add("Commit: " + metrics.getCommitTime());
+        pager.add("Journal flush (main thread): " + metrics.getJournalFlushTime());
+        pager.add(LocationManager.getManager().getSuppressedWriteCount() + " unchanged block updates skipped by DB writer");
+        pager.add(ChatColor.AQUA + "Freeze time by block type (main thread):");
+        int n = 0;
+        for (StorageMetrics.TypeStats stats : metrics.getFreezeStats()) {
+            if (n++ >= MAX_TYPES) {
+                break;
+            }
+            pager.addListItem(stats.toString());
+        }
+        pager.showPage();
+        return true;
+    }
+}
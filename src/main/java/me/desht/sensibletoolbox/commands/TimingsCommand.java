@@ -0,0 +1,80 @@
+package me.desht.sensibletoolbox.commands;
+
+import me.desht.dhutils.DHUtilsException;
+import me.desht.dhutils.DHValidate;
+import me.desht.dhutils.MessagePager;
+import me.desht.dhutils.MiscUtil;
+import me.desht.dhutils.commands.AbstractCommand;
+import me.desht.sensibletoolbox.core.storage.LocationManager;
+import me.desht.sensibletoolbox.core.storage.TickProfiler;
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class TimingsCommand extends AbstractCommand {
+    public TimingsCommand() {
+        super("stb timings", 0, 0);
+        setPermissionNode("stb.commands.timings");
+        setUsage("/<command> timings [-w <world>] [-reset]");
+        setOptions("w:s", "reset");
+    }
+
+    @Override
+    public boolean execute(Plugin plugin, CommandSender sender, String[] args) {
+        LocationManager mgr = LocationManager.getManager();
+        TickProfiler profiler = mgr.getTickProfiler();
+        if (profiler == null) {
+            throw new DHUtilsException("Tick profiling is not enabled: use '/stb setcfg tick_profiler true'");
+        }
+        if (getBooleanOption("reset")) {
+            mgr.resetTickProfiler();
+            MiscUtil.statusMessage(sender, "STB tick timings have been reset");
+            return true;
+        }
+
+        UUID worldID = null;
+        if (hasOption("w")) {
+            World w = Bukkit.getWorld(getStringOption("w"));
+            DHValidate.notNull(w, "Unknown world: " + getStringOption("w"));
+            worldID = w.getUID();
+        }
+        long ticks = Math.max(1, mgr.getTickCount() - profiler.getStartTick());
+        List<TickProfiler.Timing> timings = profiler.getTimings(worldID);
+        long total = 0;
+        for (TickProfiler.Timing t : timings) {
+            total += t.getTotalTime();
+        }
+
+        MessagePager pager = MessagePager.getPager(sender).clear();
+        pager.add(ChatColor.AQUA + String.format("STB tick timings over %d server ticks: %.3f ms/tick in total",
+                ticks, total / (double) ticks / 1000000.0));
+        for (TickProfiler.Timing t : timings) {
+            pager.addListItem(String.format("%s: %.3f ms/tick (%.1f%%), %d calls, avg %.3f ms, max %.3f ms",
+                    t.getType(), t.getTotalTime() / (double) ticks / 1000000.0,
+                    total == 0 ? 0.0 : t.getTotalTime() * 100.0 / total, t.getCount(),
+                    t.getTotalTime() / (double) t.getCount() / 1000000.0, t.getMax() / 1000000.0));
+        }
+        pager.showPage();
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(Plugin plugin, CommandSender sender, String[] args) {
+        if (args.length >= 2 && args[args.length - 2].equals("-w")) {
+            List<String> worlds = new ArrayList<String>();
+            for (World w : Bukkit.getWorlds()) {
+                worlds.add(w.getName());
+            }
+            return filterPrefix(sender, worlds, args[args.length - 1]);
+        } else {
+            showUsage(sender);
+            return noCompletions(sender);
+        }
+    }
+}
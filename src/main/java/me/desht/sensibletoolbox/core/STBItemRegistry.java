@@ -25,7 +25,6 @@ import org.bukkit.permissions.PermissionDefault;
 import org.bukkit.plugin.Plugin;
 
 import java.lang.reflect.Constructor;
-import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -90,12 +89,7 @@ public class STBItemRegistry implements ItemRegistry {
             registerPermission(permissionPrefix, BaseSTBItem.ItemAction.PLACE, id);
             registerPermission(permissionPrefix, BaseSTBItem.ItemAction.BREAK, id);
             registerPermission(permissionPrefix, BaseSTBItem.ItemAction.INTERACT_BLOCK, id);
-            try {
-                LocationManager.getManager().loadDeferredBlocks(id);
-            } catch (SQLException e) {
-                LogUtils.severe("There was a problem restoring blocks of type '" + id + "' from persisted storage:");
-                e.printStackTrace();
-            }
+            LocationManager.getManager().loadDeferredBlocks(id);
         }
     }
 
@@ -0,0 +1,140 @@
+package me.desht.sensibletoolbox.core.energy;
+
+import me.desht.sensibletoolbox.api.items.BaseSTBMachine;
+import me.desht.sensibletoolbox.api.util.STBUtil;
+import me.desht.sensibletoolbox.core.storage.BlockPosition;
+import me.desht.sensibletoolbox.core.storage.LocationManager;
+import me.desht.sensibletoolbox.util.LongHashSet;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A breadth-first scan for the cables connected to a starting cable which
+ * aren't yet part of any energy net, and the machines attached to them.
+ * Scanning stops at machines, at cables which are already in a net (those
+ * nets are recorded), and once the given number of cables has been found;
+ * in the latter case the scan is marked as truncated so the caller can
+ * report it.
+ */
+class CableScan {
+    private final List<Block> cables = new ArrayList<Block>();
+    private final List<AdjacentMachine> machines = new ArrayList<AdjacentMachine>();
+    private final Set<STBEnergyNet> netsReached = new HashSet<STBEnergyNet>();
+    private boolean truncated;
+
+    private CableScan() {
+    }
+
+    /**
+     * Scan the cables connected to the given cable which aren't yet part of
+     * any energy net.  The starting cable itself is only included in the
+     * results if it isn't in a net either.
+     *
+     * @param start the cable to start from
+     * @param limit the maximum number of cables to find
+     * @param manager the energy net manager
+     * @return the scan results
+     */
+    static CableScan scanUnconnected(Block start, int limit, EnergyNetManager manager) {
+        CableScan res = new CableScan();
+        res.run(start, limit, manager);
+        return res;
+    }
+
+    private void run(Block start, int limit, EnergyNetManager manager) {
+        if (!STBUtil.isCable(start)) {
+            return;
+        }
+        LongHashSet visited = new LongHashSet();
+        Deque<Block> queue = new ArrayDeque<Block>();
+        visited.add(BlockPosition.pack(start.getX(), start.getY(), start.getZ()));
+        queue.add(start);
+        if (manager.getEnergyNet(start) == null) {
+            if (limit <= 0) {
+                truncated = true;
+                return;
+            }
+            cables.add(start);
+        }
+
+        Block b;
+        while ((b = queue.poll()) != null) {
+            for (BlockFace face : STBUtil.directFaces) {
+                Block b1 = b.getRelative(face);
+                long pos = BlockPosition.pack(b1.getX(), b1.getY(), b1.getZ());
+                if (visited.contains(pos)) {
+                    continue;
+                }
+                if (STBUtil.isCable(b1)) {
+                    visited.add(pos);
+                    STBEnergyNet net = manager.getEnergyNet(b1);
+                    if (net != null) {
+                        netsReached.add(net);
+                        continue;
+                    }
+                    if (cables.size() >= limit) {
+                        truncated = true;
+                        continue;
+                    }
+                    cables.add(b1);
+                    queue.add(b1);
+                } else {
+                    // not marked as visited: a machine may be reached again from another cable, via another face
+                    BaseSTBMachine machine = LocationManager.getManager().get(b1.getLocation(), BaseSTBMachine.class);
+                    if (machine != null) {
+                        machines.add(new AdjacentMachine(machine, face.getOppositeFace()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the cables found, in the order they were reached.
+     *
+     * @return a list of cable blocks
+     */
+    List<Block> getCables() {
+        return cables;
+    }
+
+    /**
+     * Get the machines found next to the cables.  A machine appears once
+     * for each of its faces which leads to a found cable; the direction is
+     * from the machine towards the cable.
+     *
+     * @return a list of adjacent machines
+     */
+    List<AdjacentMachine> getMachines() {
+        return machines;
+    }
+
+    /**
+     * Get the nets which the scan ran into, other than via the starting
+     * cable.  Normally a cable which isn't in a net can't be connected to
+     * one, but this can happen if cables were changed while the plugin
+     * wasn't running, and a saved net layout was restored.
+     *
+     * @return the nets reached
+     */
+    Set<STBEnergyNet> getNetsReached() {
+        return netsReached;
+    }
+
+    /**
+     * Check if the scan stopped early because it hit its limit, leaving
+     * some connected cables unscanned.
+     *
+     * @return true if the scan was truncated
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -2,28 +2,47 @@ package me.desht.sensibletoolbox.core.energy;
 
 import com.google.common.base.Joiner;
 import me.desht.dhutils.Debugger;
+import me.desht.dhutils.LogUtils;
 import me.desht.sensibletoolbox.SensibleToolboxPlugin;
 import me.desht.sensibletoolbox.api.energy.ChargeableBlock;
 import me.desht.sensibletoolbox.api.energy.EnergyNet;
+import me.desht.sensibletoolbox.api.items.BaseSTBBlock;
 import me.desht.sensibletoolbox.api.items.BaseSTBMachine;
 import me.desht.sensibletoolbox.api.util.STBUtil;
+import me.desht.sensibletoolbox.core.storage.BlockPosition;
 import me.desht.sensibletoolbox.core.storage.LocationManager;
+import me.desht.sensibletoolbox.util.LongHashMap;
+import me.desht.sensibletoolbox.util.LongHashSet;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
 
+import java.io.IOException;
 import java.util.*;
 
 public class EnergyNetManager {
     public static final long DEFAULT_TICK_RATE = 10;
+    public static final int DEFAULT_MAX_NET_SIZE = 4096;
+    // restored cables to check against the world, per energy tick
+    private static final int CABLE_CHECKS_PER_TICK = 64;
 
     private long tickRate = DEFAULT_TICK_RATE;
+    private int maxNetSize;
 
     private final Map<Integer, STBEnergyNet> allNets = new HashMap<Integer, STBEnergyNet>();
+    // union-find forest over net IDs: a net which was merged into another points at that net
+    private final Map<Integer, Integer> mergedNets = new HashMap<Integer, Integer>();
     private final SensibleToolboxPlugin plugin;
+    private final EnergyNetStore store;
+    // cables from saved net layouts which haven't been checked yet, by world
+    private final Map<UUID, RestoredCables> restoredCables = new HashMap<UUID, RestoredCables>();
 
     public EnergyNetManager(SensibleToolboxPlugin plugin) {
         this.plugin = plugin;
+        this.maxNetSize = plugin.getConfig().getInt("energy.max_net_size", DEFAULT_MAX_NET_SIZE);
+        this.store = new EnergyNetStore(plugin.getDataFolder());
     }
 
     public long getTickRate() {
@@ -34,6 +53,20 @@ public class EnergyNetManager {
         this.tickRate = tickRate;
     }
 
+    /**
+     * Get the maximum number of cables which will be scanned when building
+     * or extending a net.
+     *
+     * @return the maximum net size, in cables
+     */
+    public int getMaxNetSize() {
+        return maxNetSize;
+    }
+
+    public void setMaxNetSize(int maxNetSize) {
+        this.maxNetSize = maxNetSize;
+    }
+
     /**
      * Get the energy net this block is in, if any.
      *
@@ -42,7 +75,28 @@ public class EnergyNetManager {
      */
     public STBEnergyNet getEnergyNet(Block block) {
         Integer netId = (Integer) STBUtil.getMetadataValue(block, STBEnergyNet.STB_ENET_ID);
-        return netId == null ? null : allNets.get(netId);
+        return netId == null ? null : allNets.get(findNetID(netId));
+    }
+
+    /**
+     * Find the net which a net ID now refers to, following any merges.
+     *
+     * @param netID a net ID, as found in a cable's metadata
+     * @return the ID of the net which the cable now belongs to
+     */
+    private int findNetID(int netID) {
+        int root = netID;
+        Integer parent;
+        while ((parent = mergedNets.get(root)) != null) {
+            root = parent;
+        }
+        // path compression, so later lookups go straight to the root
+        while (netID != root) {
+            int next = mergedNets.get(netID);
+            mergedNets.put(netID, root);
+            netID = next;
+        }
+        return root;
     }
 
     /**
@@ -63,15 +117,25 @@ public class EnergyNetManager {
                 // not connected to any net, start a new one IFF there is one or more adjacent machines
                 adjacentMachines = getAdjacentMachines(cable);
                 if (!adjacentMachines.isEmpty()) {
-                    STBEnergyNet newNet = STBEnergyNet.buildNet(cable, this);
-                    allNets.put(newNet.getNetID(), newNet);
-                    addConnectedCables(cable, newNet);
+                    buildNet(cable);
                 }
                 break;
-            case 1:
-                // connected to a single net; just add this cable to that net
-                Integer[] id = netIds.toArray(new Integer[1]);
-                STBEnergyNet net = allNets.get(id[0]);
+            default:
+                // connected to one or more nets; if more than one, merge the smaller
+                // nets into the biggest, rather than rescanning them all
+                STBEnergyNet net = null;
+                for (int netId : netIds) {
+                    STBEnergyNet net1 = allNets.get(netId);
+                    if (net == null || net1.getCableCount() > net.getCableCount()) {
+                        net = net1;
+                    }
+                }
+                for (int netId : netIds) {
+                    if (netId != net.getNetID()) {
+                        mergeEnergyNet(net, allNets.get(netId));
+                    }
+                }
+                // add this cable to the net
                 net.addCable(cable);
                 // attach any adjacent machines
                 adjacentMachines = getAdjacentMachines(cable);
@@ -81,17 +145,49 @@ public class EnergyNetManager {
                 // and any connected cable which isn't part of a net
                 addConnectedCables(cable, net);
                 break;
-            default:
-                // connected to more than one different net!
-                // delete those nets, then re-scan and build a new single unified net
-                for (int netId : netIds) {
-                    deleteEnergyNet(netId);
-                }
-                STBEnergyNet newNet = STBEnergyNet.buildNet(cable, this);
-                allNets.put(newNet.getNetID(), newNet);
         }
     }
 
+    /**
+     * Build a new net from a cable which isn't part of one.
+     *
+     * @param cable the cable
+     * @return the new net, or the net it was merged into
+     */
+    private STBEnergyNet buildNet(Block cable) {
+        CableScan scan = CableScan.scanUnconnected(cable, maxNetSize, this);
+        STBEnergyNet net = STBEnergyNet.buildNet(cable.getWorld(), scan, this);
+        allNets.put(net.getNetID(), net);
+        if (scan.isTruncated()) {
+            net.reportTruncated(cable, maxNetSize);
+        }
+        for (STBEnergyNet other : scan.getNetsReached()) {
+            net = mergeNets(net, other);
+        }
+        return net;
+    }
+
+    /**
+     * Merge two nets, the smaller into the bigger.
+     *
+     * @return the surviving net
+     */
+    private STBEnergyNet mergeNets(STBEnergyNet net1, STBEnergyNet net2) {
+        if (net1.getCableCount() >= net2.getCableCount()) {
+            mergeEnergyNet(net1, net2);
+            return net1;
+        } else {
+            mergeEnergyNet(net2, net1);
+            return net2;
+        }
+    }
+
+    private void mergeEnergyNet(STBEnergyNet into, STBEnergyNet from) {
+        into.absorb(from);
+        mergedNets.put(from.getNetID(), into.getNetID());
+        allNets.remove(from.getNetID());
+    }
+
     public void onCableRemoved(Block cable) {
         STBEnergyNet thisNet = getEnergyNet(cable);
         if (thisNet == null) {
@@ -101,10 +197,24 @@ public class EnergyNetManager {
 
         Debugger.getInstance().debug(2, "removing cable " + cable + " from enet #" + thisNet.getNetID());
 
-        // scan this cable's neighbours to see what it was attached to
+        // scan this cable's neighbours to see what it was attached to; neighbours in
+        // unloaded chunks are only looked at in the net's own record of its cables
         final List<Block> attachedCables = new ArrayList<Block>();
         final List<BaseSTBMachine> attachedMachines = new ArrayList<BaseSTBMachine>();
+        boolean unloadedCable = false;
         for (BlockFace face : STBUtil.directFaces) {
+            if (!isNeighbourLoaded(cable, face)) {
+                int x = cable.getX() + face.getModX(), y = cable.getY() + face.getModY(), z = cable.getZ() + face.getModZ();
+                if (thisNet.hasCable(BlockPosition.pack(x, y, z))) {
+                    unloadedCable = true;
+                } else {
+                    BaseSTBMachine machine = getMachineAt(cable.getWorld(), x, y, z);
+                    if (machine != null) {
+                        attachedMachines.add(machine);
+                    }
+                }
+                continue;
+            }
             Block b = cable.getRelative(face);
             if (STBUtil.isCable(b)) {
                 attachedCables.add(b);
@@ -116,30 +226,209 @@ public class EnergyNetManager {
             }
         }
 
-        if (attachedCables.size() == 1 && attachedMachines.isEmpty()) {
-            // simple case; cable attached to only one other cable - no need to delete the net
-            thisNet.removeCable(cable);
-        } else {
-            // delete the energy net for the removed cable; this will also detach any machines
+        thisNet.removeCable(cable);
+        if (thisNet.getCableCount() == 0) {
+            // that was the last cable; this will also detach any machines
             deleteEnergyNet(thisNet.getNetID());
-            if (attachedCables.size() > 0) {
-                // need a delayed task here, since the block for the cable being removed isn't
-                // actually updated to air yet...
-                final EnergyNetManager mgr = this;
-                Bukkit.getScheduler().runTask(plugin, new Runnable() {
-                    @Override
-                    public void run() {
-                        // rebuild energy nets for the deleted cable's neighbours
-                        for (Block b : attachedCables) {
-                            // those neighbours could have another path to each other
-                            EnergyNet net1 = getEnergyNet(b);
-                            if (net1 == null) {
-                                STBEnergyNet newNet1 = STBEnergyNet.buildNet(b, mgr);
-                                allNets.put(newNet1.getNetID(), newNet1);
-                            }
+            return;
+        }
+        if (attachedCables.size() + (unloadedCable ? 1 : 0) > 1) {
+            // those neighbours could have another path to each other
+            splitIfDisconnected(thisNet, cable, attachedCables, unloadedCable);
+        }
+        // machines which were attached via the removed cable may still be
+        // attached to the net (or a piece split off from it) via other faces
+        for (BaseSTBMachine machine : attachedMachines) {
+            reattachMachine(machine, thisNet);
+        }
+    }
+
+    /**
+     * Check whether removing a cable has split its net into separate
+     * pieces, by running a breadth-first search from each of the removed
+     * cable's neighbouring cables in lockstep.  Searches which run into each
+     * other are merged.  A search (or merged group of searches) which runs
+     * out of cables without meeting the others has found a piece which is
+     * no longer connected to them, and that piece is moved to a new net.
+     * The search stops as soon as only one piece is still being explored;
+     * that piece keeps the original net.  So the cost depends on the size
+     * of the smaller pieces (or of the loop between the neighbours, if the
+     * net hasn't been split at all), not on the size of the whole net.
+     * <p/>
+     * The search doesn't load chunks (only re-attaching a machine in an
+     * unloaded chunk does).  A search which reaches one of the
+     * net's cables in an unloaded chunk can't tell where that leads, so it's
+     * assumed to be still connected to the rest of the net: it's never
+     * split off, and it's merged with any other search which does the same.
+     *
+     * @param net the net the cable has been removed from
+     * @param removed the removed cable, which may still be a cable block
+     * @param neighbours the removed cable's neighbouring cables in loaded chunks
+     * @param unloadedNeighbour true if the removed cable also has a neighbouring
+     *                          cable (in the net) in an unloaded chunk
+     */
+    private void splitIfDisconnected(STBEnergyNet net, Block removed, List<Block> neighbours, boolean unloadedNeighbour) {
+        // an unloaded neighbour gets a search of its own which never runs, but is open from the start
+        int n = neighbours.size() + (unloadedNeighbour ? 1 : 0);
+        long removedPos = BlockPosition.pack(removed.getX(), removed.getY(), removed.getZ());
+        // which search reached each cable first, by packed position
+        LongHashMap<Integer> owner = new LongHashMap<Integer>();
+        List<Deque<Block>> queues = new ArrayList<Deque<Block>>(n);
+        List<LongHashSet> found = new ArrayList<LongHashSet>(n);
+        int[] group = new int[n];  // union-find over the searches
+        boolean[] splitOff = new boolean[n];  // by group root
+        boolean[] open = new boolean[n];  // by group root: has reached a cable in an unloaded chunk
+        int openGroup = -1;  // a search in the open group, if there is one
+        for (int i = 0; i < n; i++) {
+            group[i] = i;
+            queues.add(new ArrayDeque<Block>());
+            found.add(new LongHashSet());
+            if (i < neighbours.size()) {
+                Block b = neighbours.get(i);
+                long pos = BlockPosition.pack(b.getX(), b.getY(), b.getZ());
+                owner.put(pos, i);
+                queues.get(i).add(b);
+                found.get(i).add(pos);
+            } else {
+                open[i] = true;
+                openGroup = i;
+            }
+        }
+
+        int nLive = n;  // groups still being explored
+
+        while (nLive > 1) {
+            for (int i = 0; i < n; i++) {
+                Block b = queues.get(i).poll();
+                if (b == null) {
+                    continue;
+                }
+                for (BlockFace face : STBUtil.directFaces) {
+                    int other;
+                    if (!isNeighbourLoaded(b, face)) {
+                        long pos = BlockPosition.pack(b.getX() + face.getModX(), b.getY() + face.getModY(), b.getZ() + face.getModZ());
+                        if (!net.hasCable(pos)) {
+                            continue;
+                        }
+                        if (openGroup < 0) {
+                            open[findGroup(group, i)] = true;
+                            openGroup = i;
+                            continue;
+                        }
+                        other = openGroup;
+                    } else {
+                        Block b1 = b.getRelative(face);
+                        if (!STBUtil.isCable(b1)) {
+                            continue;
                         }
+                        long pos = BlockPosition.pack(b1.getX(), b1.getY(), b1.getZ());
+                        if (pos == removedPos) {
+                            continue;
+                        }
+                        Integer o = owner.get(pos);
+                        if (o == null) {
+                            owner.put(pos, i);
+                            found.get(i).add(pos);
+                            queues.get(i).add(b1);
+                            continue;
+                        }
+                        other = o;
+                    }
+                    int g1 = findGroup(group, i), g2 = findGroup(group, other);
+                    if (g1 != g2) {
+                        group[g2] = g1;
+                        open[g1] |= open[g2];
+                        nLive--;
+                    }
+                }
+            }
+            // any group whose searches have all run dry is a separate piece
+            for (int g = 0; g < n && nLive > 1; g++) {
+                if (findGroup(group, g) != g || splitOff[g] || open[g] || !isExhausted(group, queues, g)) {
+                    continue;
+                }
+                STBEnergyNet newNet = STBEnergyNet.emptyNet(removed.getWorld(), this);
+                allNets.put(newNet.getNetID(), newNet);
+                for (int i = 0; i < n; i++) {
+                    if (findGroup(group, i) == g) {
+                        net.moveCables(found.get(i), newNet);
+                    }
+                }
+                for (int i = 0; i < n; i++) {
+                    if (findGroup(group, i) == g) {
+                        reattachMachines(found.get(i), removed.getWorld(), net);
                     }
-                });
+                }
+                newNet.findSourcesAndSinks();
+                splitOff[g] = true;
+                nLive--;
+                Debugger.getInstance().debug("Enet #" + net.getNetID() + ": split off enet #" + newNet.getNetID()
+                        + " with " + newNet.getCableCount() + " cables");
+            }
+        }
+    }
+
+    private static boolean isNeighbourLoaded(Block b, BlockFace face) {
+        return b.getWorld().isChunkLoaded((b.getX() + face.getModX()) >> 4, (b.getZ() + face.getModZ()) >> 4);
+    }
+
+    private static int findGroup(int[] group, int i) {
+        while (group[i] != i) {
+            group[i] = group[group[i]];
+            i = group[i];
+        }
+        return i;
+    }
+
+    private static boolean isExhausted(int[] group, List<Deque<Block>> queues, int g) {
+        for (int i = 0; i < group.length; i++) {
+            if (findGroup(group, i) == g && !queues.get(i).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Re-attach any machines next to the given cables which were attached
+     * to the given net, to whichever nets their faces now lead to.
+     */
+    private void reattachMachines(LongHashSet cables, World world, STBEnergyNet net) {
+        for (long pos : cables.toArray()) {
+            int x = BlockPosition.unpackX(pos), y = BlockPosition.unpackY(pos), z = BlockPosition.unpackZ(pos);
+            for (BlockFace face : STBUtil.directFaces) {
+                BaseSTBMachine machine = getMachineAt(world, x + face.getModX(), y + face.getModY(), z + face.getModZ());
+                if (machine != null) {
+                    reattachMachine(machine, net);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the machine at the given position, if any, without touching the
+     * block (and so possibly loading its chunk).
+     */
+    private static BaseSTBMachine getMachineAt(World world, int x, int y, int z) {
+        BaseSTBBlock stb = LocationManager.getManager().get(world.getUID(), x, y, z);
+        return stb instanceof BaseSTBMachine ? (BaseSTBMachine) stb : null;
+    }
+
+    /**
+     * Detach a machine from a net whose cables have changed, and attach it
+     * again via each of its faces which still leads to a cable in a net.
+     */
+    private void reattachMachine(ChargeableBlock machine, STBEnergyNet net) {
+        List<BlockFace> faces = machine.getFacesForNet(net);
+        if (faces.isEmpty()) {
+            return;
+        }
+        net.removeMachine(machine);
+        Block b = machine.getLocation().getBlock();
+        for (BlockFace face : faces) {
+            STBEnergyNet net1 = getEnergyNet(b.getRelative(face));
+            if (net1 != null) {
+                net1.addMachine(machine, face);
             }
         }
     }
@@ -153,9 +442,7 @@ public class EnergyNetManager {
                 STBEnergyNet net = getEnergyNet(cable);
                 if (net == null) {
                     // cable with no net - create one!
-                    STBEnergyNet newNet = STBEnergyNet.buildNet(cable, this);
-                    newNet.addMachine(machine, face);
-                    allNets.put(newNet.getNetID(), newNet);
+                    buildNet(cable).addMachine(machine, face);
                 } else {
                     // cable on a net - add machine to it
                     net.addMachine(machine, face);
@@ -171,22 +458,26 @@ public class EnergyNetManager {
     }
 
     /**
-     * Recursively scan for any cable which is not currently part of an energy net,
-     * and add it to the given net.
+     * Scan for any connected cable which is not currently part of an energy net,
+     * and add it to the given net, along with any machines next to it.
      *
      * @param start block to scan from
      * @param net   net to add cabling to
      */
     private void addConnectedCables(Block start, STBEnergyNet net) {
-        for (BlockFace face : STBUtil.directFaces) {
-            Block b = start.getRelative(face);
-            if (STBUtil.isCable(b)) {
-                EnergyNet net2 = getEnergyNet(b);
-                if (net2 == null) {
-                    net.addCable(b);
-                    addConnectedCables(b, net);
-                }
-            }
+        int limit = Math.max(0, maxNetSize - net.getCableCount());
+        CableScan scan = CableScan.scanUnconnected(start, limit, this);
+        if (scan.getCables().isEmpty() && !scan.isTruncated()) {
+            return;
+        }
+        for (Block b : scan.getCables()) {
+            net.addCable(b);
+        }
+        for (AdjacentMachine rec : scan.getMachines()) {
+            net.addMachine(rec.getMachine(), rec.getDirection());
+        }
+        if (scan.isTruncated()) {
+            net.reportTruncated(start, maxNetSize);
         }
     }
 
@@ -222,14 +513,234 @@ public class EnergyNetManager {
     private void deleteEnergyNet(int netID) {
         STBEnergyNet enet = allNets.get(netID);
         if (enet != null) {
+            for (int mergedID : enet.getMergedIDs()) {
+                mergedNets.remove(mergedID);
+            }
             enet.shutdown();
             allNets.remove(netID);
         }
     }
 
+    /**
+     * Get the number of energy nets.
+     *
+     * @return the number of nets
+     */
+    public int getNetCount() {
+        return allNets.size();
+    }
+
+    /**
+     * Get the number of energy nets which are currently quiescent, and so
+     * not being recalculated each energy tick.
+     *
+     * @return the number of quiescent nets
+     */
+    public int countQuiescentNets() {
+        int n = 0;
+        for (STBEnergyNet net : allNets.values()) {
+            if (net.isQuiescent()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
     public void tick() {
+        if (!restoredCables.isEmpty()) {
+            checkRestoredCables();
+        }
         for (STBEnergyNet net : allNets.values()) {
             net.tick();
         }
     }
+
+    /**
+     * Rebuild a world's nets from their saved cable layout, if there is
+     * one.  Cables are marked with their net as their chunks are loaded (see
+     * {@link #chunkLoaded(Chunk)}), and then checked against the world a few
+     * at a time on each energy tick.  This must be called before any of the
+     * world's machines are registered, so they find their cables already in
+     * a net.
+     *
+     * @param world the world
+     */
+    public void restoreNets(World world) {
+        List<long[]> saved;
+        try {
+            saved = store.load(world.getUID(), world.getFullTime());
+        } catch (IOException e) {
+            LogUtils.warning("can't load saved energy nets for " + world.getName() + ": " + e.getMessage()
+                    + "; they'll be rebuilt from the world");
+            return;
+        }
+        if (saved == null) {
+            return;
+        }
+        RestoredCables restored = new RestoredCables();
+        int nCables = 0;
+        for (long[] positions : saved) {
+            STBEnergyNet net = STBEnergyNet.emptyNet(world, this);
+            net.restoreCables(positions);
+            allNets.put(net.getNetID(), net);
+            for (long pos : positions) {
+                int x = BlockPosition.unpackX(pos), z = BlockPosition.unpackZ(pos);
+                if (world.isChunkLoaded(x >> 4, z >> 4)) {
+                    net.markCable(world.getBlockAt(x, BlockPosition.unpackY(pos), z));
+                    restored.addToCheck(pos, net.getNetID());
+                } else {
+                    restored.addUnloaded(pos, net.getNetID(), x >> 4, z >> 4);
+                }
+            }
+            nCables += positions.length;
+        }
+        restoredCables.put(world.getUID(), restored);
+        LogUtils.info("Restored " + saved.size() + " energy nets (" + nCables + " cables) for " + world.getName());
+    }
+
+    /**
+     * A chunk has been loaded; mark any restored cables in it with their
+     * net, and queue them to be checked.  This must be called before any
+     * of the chunk's machines are registered.
+     *
+     * @param chunk the chunk
+     */
+    public void chunkLoaded(Chunk chunk) {
+        RestoredCables restored = restoredCables.get(chunk.getWorld().getUID());
+        RestoredCables.CableList list = restored == null ? null : restored.takeChunk(chunk.getX(), chunk.getZ());
+        if (list == null) {
+            return;
+        }
+        World world = chunk.getWorld();
+        for (int i = 0; i < list.size(); i++) {
+            long pos = list.getPosition(i);
+            // the net may have been merged into another, or deleted, since
+            STBEnergyNet net = allNets.get(findNetID(list.getNetID(i)));
+            if (net != null && net.hasCable(pos)) {
+                net.markCable(world.getBlockAt(BlockPosition.unpackX(pos), BlockPosition.unpackY(pos), BlockPosition.unpackZ(pos)));
+                restored.addToCheck(pos, net.getNetID());
+            }
+        }
+    }
+
+    private void checkRestoredCables() {
+        int budget = CABLE_CHECKS_PER_TICK;
+        Iterator<Map.Entry<UUID, RestoredCables>> iter = restoredCables.entrySet().iterator();
+        while (iter.hasNext() && budget > 0) {
+            Map.Entry<UUID, RestoredCables> entry = iter.next();
+            World world = Bukkit.getWorld(entry.getKey());
+            if (world == null) {
+                iter.remove();
+                continue;
+            }
+            RestoredCables restored = entry.getValue();
+            RestoredCables.CableList toCheck = restored.getToCheck();
+            while (toCheck.size() > 0 && budget > 0) {
+                long pos = toCheck.getPosition(toCheck.size() - 1);
+                int netID = toCheck.getNetID(toCheck.size() - 1);
+                toCheck.removeLast();
+                budget--;
+                int x = BlockPosition.unpackX(pos), z = BlockPosition.unpackZ(pos);
+                if (!world.isChunkLoaded(x >> 4, z >> 4)) {
+                    // unloaded again already; check it next time it's loaded
+                    restored.addUnloaded(pos, netID, x >> 4, z >> 4);
+                    continue;
+                }
+                checkRestoredCable(world.getBlockAt(x, BlockPosition.unpackY(pos), z));
+            }
+            if (restored.isDone()) {
+                Debugger.getInstance().debug("all restored energy net cables checked for " + world.getName());
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Check that a restored cable is still a cable, and that it's in the
+     * same net as any cables next to it; the world may have been changed
+     * while the plugin wasn't running.  Neighbours in unloaded chunks are
+     * left alone, rather than loading the chunk, and removing a cable which
+     * has gone doesn't load chunks either (see
+     * {@link #splitIfDisconnected(STBEnergyNet, Block, List)}).  Joining up
+     * an unconnected neighbour scans its cables just as placing a cable
+     * would, though.
+     *
+     * @param b the restored cable's block
+     */
+    private void checkRestoredCable(Block b) {
+        STBEnergyNet net = getEnergyNet(b);
+        if (net == null) {
+            // already removed from its net since it was restored
+            return;
+        }
+        if (!STBUtil.isCable(b)) {
+            Debugger.getInstance().debug("restored cable " + b + " is no longer there");
+            onCableRemoved(b);
+            return;
+        }
+        World world = b.getWorld();
+        for (BlockFace face : STBUtil.directFaces) {
+            int x = b.getX() + face.getModX(), z = b.getZ() + face.getModZ();
+            if (!world.isChunkLoaded(x >> 4, z >> 4)) {
+                continue;
+            }
+            Block b1 = b.getRelative(face);
+            if (!STBUtil.isCable(b1)) {
+                continue;
+            }
+            STBEnergyNet net1 = getEnergyNet(b1);
+            if (net1 == null) {
+                Debugger.getInstance().debug("restored cable " + b + " has an unconnected neighbour");
+                addConnectedCables(b, net);
+            } else if (net1 != net) {
+                Debugger.getInstance().debug("restored cable " + b + " connects enets #" + net.getNetID() + " and #" + net1.getNetID());
+                net = mergeNets(net, net1);
+            }
+        }
+    }
+
+    /**
+     * Save the cable layout of a world's nets, so they can be restored
+     * without rescanning the world next time it's loaded.
+     *
+     * @param world the world
+     */
+    public void saveNets(World world) {
+        List<long[]> nets = new ArrayList<long[]>();
+        for (STBEnergyNet net : allNets.values()) {
+            if (net.getWorldName().equals(world.getName()) && net.getCableCount() > 0) {
+                nets.add(net.getCablePositions());
+            }
+        }
+        try {
+            store.save(world.getUID(), world.getFullTime(), nets);
+            Debugger.getInstance().debug("saved " + nets.size() + " energy nets for " + world.getName());
+        } catch (IOException e) {
+            LogUtils.warning("can't save energy nets for " + world.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The given world has just been unloaded; save and then drop its nets.
+     *
+     * @param world the world
+     */
+    public void worldUnloaded(World world) {
+        saveNets(world);
+        for (STBEnergyNet net : new ArrayList<STBEnergyNet>(allNets.values())) {
+            if (net.getWorldName().equals(world.getName())) {
+                deleteEnergyNet(net.getNetID());
+            }
+        }
+        restoredCables.remove(world.getUID());
+    }
+
+    /**
+     * Save the nets for all worlds; called when the plugin is disabled.
+     */
+    public void shutdown() {
+        for (World world : Bukkit.getWorlds()) {
+            saveNets(world);
+        }
+    }
 }
@@ -0,0 +1,117 @@
+package me.desht.sensibletoolbox.core.energy;
+
+import me.desht.dhutils.LogUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Saves and loads the cable layout of each world's energy nets, one file per
+ * world, so the nets can be put back together at startup without scanning
+ * the world for cables.
+ * <p/>
+ * A saved layout is only trusted once: the file is deleted as soon as it's
+ * been read, and only written again when the world is unloaded or the plugin
+ * is disabled.  So if the server stops uncleanly, the nets are just rebuilt
+ * from the world as before.  The world's full time is saved along with the
+ * layout, and a layout is rejected if the world's time has moved on since,
+ * which means the world has been run without the plugin, and its cables
+ * may have been changed.  (Changes made by external world editors can't be
+ * spotted this way; those are caught as restored cables are checked.)
+ */
+class EnergyNetStore {
+    private static final String ENET_DIR = "enets";
+    private static final int MAGIC = 0x53544245;  // "STBE"
+    private static final int VERSION = 2;
+
+    private final File saveDir;
+
+    EnergyNetStore(File dataFolder) {
+        saveDir = new File(dataFolder, ENET_DIR);
+        if (!saveDir.exists()) {
+            if (!saveDir.mkdir()) {
+                LogUtils.warning("can't create directory: " + saveDir);
+            }
+        }
+    }
+
+    /**
+     * Save the cable layout for a world's nets.
+     *
+     * @param worldID the world's UUID
+     * @param worldTime the world's full time
+     * @param nets the nets in the world, each an array of packed cable positions
+     * @throws IOException if the file can't be written
+     */
+    void save(UUID worldID, long worldTime, Collection<long[]> nets) throws IOException {
+        File tmp = new File(saveDir, worldID + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(worldTime);
+            out.writeInt(nets.size());
+            for (long[] cables : nets) {
+                out.writeInt(cables.length);
+                for (long pos : cables) {
+                    out.writeLong(pos);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        File f = getFile(worldID);
+        if (f.exists() && !f.delete() || !tmp.renameTo(f)) {
+            throw new IOException("can't rename " + tmp + " to " + f);
+        }
+    }
+
+    /**
+     * Load, and then delete, the saved cable layout for a world.
+     *
+     * @param worldID the world's UUID
+     * @param worldTime the world's full time now
+     * @return a list of nets, each an array of packed cable positions; null
+     *         if nothing is saved for the world
+     * @throws IOException if the file can't be read, isn't valid, or was
+     *                     saved at a different world time
+     */
+    List<long[]> load(UUID worldID, long worldTime) throws IOException {
+        File f = getFile(worldID);
+        if (!f.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a saved energy net file, or unknown version");
+            }
+            long savedTime = in.readLong();
+            if (savedTime != worldTime) {
+                throw new IOException("saved at world time " + savedTime + ", but the world is now at " + worldTime);
+            }
+            int nNets = in.readInt();
+            List<long[]> res = new ArrayList<long[]>(nNets);
+            for (int i = 0; i < nNets; i++) {
+                long[] cables = new long[in.readInt()];
+                for (int j = 0; j < cables.length; j++) {
+                    cables[j] = in.readLong();
+                }
+                res.add(cables);
+            }
+            return res;
+        } finally {
+            in.close();
+            if (!f.delete()) {
+                LogUtils.warning("can't delete " + f);
+            }
+        }
+    }
+
+    private File getFile(UUID worldID) {
+        return new File(saveDir, worldID + ".dat");
+    }
+}
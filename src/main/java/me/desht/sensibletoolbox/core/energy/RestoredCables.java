@@ -0,0 +1,109 @@
+package me.desht.sensibletoolbox.core.energy;
+
+import me.desht.sensibletoolbox.util.LongHashMap;
+
+/**
+ * Tracks the cables of one world's restored energy nets which haven't yet
+ * been checked against the world.  A cable in an unloaded chunk waits until
+ * its chunk is loaded, when its block is marked with its net ID; it's then
+ * queued to be checked that it really is still a cable, and that it's
+ * connected as the saved layout says it was.
+ */
+class RestoredCables {
+    // cables in chunks which haven't been loaded yet, by packed chunk coords
+    private final LongHashMap<CableList> unloaded = new LongHashMap<CableList>();
+    // cables marked with their net, waiting to be checked
+    private final CableList toCheck = new CableList();
+
+    /**
+     * Add a cable whose chunk isn't loaded yet.
+     *
+     * @param pos the packed cable position
+     * @param netID the ID of the net the cable was restored into
+     * @param chunkX the X coordinate of the cable's chunk
+     * @param chunkZ the Z coordinate of the cable's chunk
+     */
+    void addUnloaded(long pos, int netID, int chunkX, int chunkZ) {
+        long key = chunkKey(chunkX, chunkZ);
+        CableList list = unloaded.get(key);
+        if (list == null) {
+            list = new CableList();
+            unloaded.put(key, list);
+        }
+        list.add(pos, netID);
+    }
+
+    /**
+     * Remove and return the waiting cables for a chunk which has just been
+     * loaded.
+     *
+     * @return the chunk's cables, or null if there are none
+     */
+    CableList takeChunk(int chunkX, int chunkZ) {
+        return unloaded.remove(chunkKey(chunkX, chunkZ));
+    }
+
+    /**
+     * Queue a cable, which has been marked with its net, to be checked.
+     *
+     * @param pos the packed cable position
+     * @param netID the ID of the net the cable was restored into
+     */
+    void addToCheck(long pos, int netID) {
+        toCheck.add(pos, netID);
+    }
+
+    CableList getToCheck() {
+        return toCheck;
+    }
+
+    boolean isDone() {
+        return unloaded.isEmpty() && toCheck.size() == 0;
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A list of packed cable positions, each with a net ID.
+     */
+    static class CableList {
+        private long[] positions = new long[16];
+        private int[] netIDs = new int[16];
+        private int size;
+
+        void add(long pos, int netID) {
+            if (size == positions.length) {
+                long[] p = new long[size * 2];
+                int[] n = new int[size * 2];
+                System.arraycopy(positions, 0, p, 0, size);
+                System.arraycopy(netIDs, 0, n, 0, size);
+                positions = p;
+                netIDs = n;
+            }
+            positions[size] = pos;
+            netIDs[size] = netID;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long getPosition(int i) {
+            return positions[i];
+        }
+
+        int getNetID(int i) {
+            return netIDs[i];
+        }
+
+        /**
+         * Remove the last entry; the list is used as a stack.
+         */
+        void removeLast() {
+            size--;
+        }
+    }
+}
@@ -1,13 +1,12 @@
 package me.desht.sensibletoolbox.core.energy;
 
 import me.desht.dhutils.Debugger;
+import me.desht.dhutils.LogUtils;
 import me.desht.sensibletoolbox.SensibleToolboxPlugin;
 import me.desht.sensibletoolbox.api.energy.ChargeableBlock;
 import me.desht.sensibletoolbox.api.energy.EnergyNet;
-import me.desht.sensibletoolbox.api.items.BaseSTBMachine;
-import me.desht.sensibletoolbox.api.util.STBUtil;
 import me.desht.sensibletoolbox.core.storage.BlockPosition;
-import me.desht.sensibletoolbox.core.storage.LocationManager;
+import me.desht.sensibletoolbox.util.LongHashSet;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 import org.bukkit.block.Block;
@@ -21,16 +20,27 @@ import java.util.Set;
 
 public class STBEnergyNet implements EnergyNet {
     public static final String STB_ENET_ID = "STB_ENet_ID";
-    public static final int MAX_BLOCKS_IN_CABLE = 512;
     private static int freeID = 1;
     private final int netID;
     private final String worldName;
-    private final List<BlockPosition> cables = new ArrayList<BlockPosition>();
+    // packed positions, see BlockPosition.pack()
+    private final LongHashSet cables = new LongHashSet();
     private final Set<ChargeableBlock> machines = new HashSet<ChargeableBlock>();
+    // IDs of nets which have been merged into this one; their cables may still carry those IDs
+    private final List<Integer> mergedIDs = new ArrayList<Integer>();
     private double totalDemand;
     private double totalSupply;
+    // no supply or no demand last tick, and nothing's changed since
+    private boolean quiescent;
     private final Set<ChargeableBlock> energySinks = new HashSet<ChargeableBlock>();
     private final Set<ChargeableBlock> energySources = new HashSet<ChargeableBlock>();
+    // solver state: every source and sink, once each, with per-tick scratch arrays
+    private ChargeableBlock[] members = new ChargeableBlock[0];
+    private boolean[] isSource = new boolean[0];
+    private boolean[] isSink = new boolean[0];
+    private double[] charge = new double[0];
+    private double[] supply = new double[0];
+    private double[] demand = new double[0];
     private final EnergyNetManager enetManager;
 
     private STBEnergyNet(String worldName, EnergyNetManager manager) {
@@ -43,18 +53,33 @@ public class STBEnergyNet implements EnergyNet {
         return freeID++;
     }
 
-    static STBEnergyNet buildNet(Block b, EnergyNetManager manager) {
-        STBEnergyNet enet = new STBEnergyNet(b.getWorld().getName(), manager);
+    /**
+     * Create a net with no cables or machines, to be filled in by the caller.
+     *
+     * @param world the world the net is in
+     * @param manager the energy net manager
+     * @return a new empty net
+     */
+    static STBEnergyNet emptyNet(World world, EnergyNetManager manager) {
+        return new STBEnergyNet(world.getName(), manager);
+    }
 
-        Set<Object> blocks = new HashSet<Object>();
-        recursiveScan(b, blocks, BlockFace.SELF);
-        for (Object o : blocks) {
-            if (o instanceof Block) {
-                enet.addCable((Block) o);
-            } else if (o instanceof AdjacentMachine) {
-                AdjacentMachine rec = (AdjacentMachine) o;
-                enet.addMachine(rec.getMachine(), rec.getDirection());
-            }
+    /**
+     * Build a net from the results of a cable scan.
+     *
+     * @param world the world the net is in
+     * @param scan the cables and machines to put in the net
+     * @param manager the energy net manager
+     * @return a new net
+     */
+    static STBEnergyNet buildNet(World world, CableScan scan, EnergyNetManager manager) {
+        STBEnergyNet enet = new STBEnergyNet(world.getName(), manager);
+
+        for (Block cable : scan.getCables()) {
+            enet.addCable(cable);
+        }
+        for (AdjacentMachine rec : scan.getMachines()) {
+            enet.attachMachine(rec.getMachine(), rec.getDirection());
         }
         enet.findSourcesAndSinks();
         Debugger.getInstance().debug("built new net #" + enet.getNetID() + " with " + enet.cables.size() + " cables & " + enet.machines.size() + " machines");
@@ -62,28 +87,16 @@ public class STBEnergyNet implements EnergyNet {
     }
 
     /**
-     * Recursively scan blocks attached to this block for cables and machines.  Machines are added to the
-     * list of discovered blocks, but scanning stops where a machine is encountered.
+     * Warn that not all the cables connected to this net could be added to
+     * it, because it's reached the size limit.
      *
-     * @param b          the block being checked
-     * @param discovered set of discovered blocks so far
+     * @param b a cable in the net
+     * @param limit the size limit
      */
-    private static void recursiveScan(Block b, Set<Object> discovered, BlockFace fromDir) {
-        if (discovered.size() > MAX_BLOCKS_IN_CABLE || discovered.contains(b)) {
-            return;
-        }
-
-        if (!STBUtil.isCable(b)) {
-            BaseSTBMachine machine = LocationManager.getManager().get(b.getLocation(), BaseSTBMachine.class);
-            if (machine != null) {
-                discovered.add(new AdjacentMachine(machine, fromDir));
-            }
-        } else {
-            discovered.add(b);
-            for (BlockFace face : STBUtil.directFaces) {
-                recursiveScan(b.getRelative(face), discovered, face.getOppositeFace());
-            }
-        }
+    void reportTruncated(Block b, int limit) {
+        LogUtils.warning(String.format("Energy net #%d at %s,%d,%d,%d has more than %d cables; " +
+                "cables beyond that aren't part of the net.  Raise energy.max_net_size if this is intended.",
+                getNetID(), worldName, b.getX(), b.getY(), b.getZ(), limit));
     }
 
     /**
@@ -103,19 +116,55 @@ public class STBEnergyNet implements EnergyNet {
                 }
             }
         }
+        buildSolverArrays();
+        quiescent = false;
         Debugger.getInstance().debug("Energy net #" + getNetID() + ": found "
                 + energySources.size() + " sources and " + energySinks.size() + " sinks");
     }
 
+    private void buildSolverArrays() {
+        Set<ChargeableBlock> all = new HashSet<ChargeableBlock>(energySources);
+        all.addAll(energySinks);
+        int n = all.size();
+        members = all.toArray(new ChargeableBlock[n]);
+        isSource = new boolean[n];
+        isSink = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            isSource[i] = energySources.contains(members[i]);
+            isSink[i] = energySinks.contains(members[i]);
+        }
+        charge = new double[n];
+        supply = new double[n];
+        demand = new double[n];
+    }
+
+    @Override
+    public void wakeUp() {
+        quiescent = false;
+    }
+
+    @Override
+    public boolean isQuiescent() {
+        return quiescent;
+    }
+
     @Override
     public int getNetID() {
         return netID;
     }
 
     void addMachine(ChargeableBlock machine, BlockFace face) {
+        attachMachine(machine, face);
+        findSourcesAndSinks();
+    }
+
+    /**
+     * Attach a machine without rescanning for sources and sinks; the
+     * caller must call {@link #findSourcesAndSinks()} when done.
+     */
+    private void attachMachine(ChargeableBlock machine, BlockFace face) {
         machine.attachToEnergyNet(this, face);
         machines.add(machine);
-        findSourcesAndSinks();
         Debugger.getInstance().debug("Enet #" + getNetID() + ": added machine " + machine + " on face " + face);
     }
 
@@ -127,23 +176,113 @@ public class STBEnergyNet implements EnergyNet {
     }
 
     void addCable(Block cable) {
-        cable.setMetadata(STB_ENET_ID, new FixedMetadataValue(SensibleToolboxPlugin.getInstance(), getNetID()));
-        cables.add(new BlockPosition(cable.getLocation()));
+        markCable(cable);
+        cables.add(BlockPosition.pack(cable.getX(), cable.getY(), cable.getZ()));
         Debugger.getInstance().debug("Enet #" + getNetID() + ": added cable @ " + cable);
     }
 
+    /**
+     * Mark a cable block as belonging to this net, without adding it to the
+     * net's cables; used for restored cables, which are already there.
+     *
+     * @param cable the cable block
+     */
+    void markCable(Block cable) {
+        cable.setMetadata(STB_ENET_ID, new FixedMetadataValue(SensibleToolboxPlugin.getInstance(), getNetID()));
+    }
+
+    /**
+     * Add cables from a saved net layout, without touching their blocks;
+     * see {@link #markCable(Block)}.
+     *
+     * @param positions the packed cable positions
+     */
+    void restoreCables(long[] positions) {
+        for (long pos : positions) {
+            cables.add(pos);
+        }
+    }
+
+    boolean hasCable(long pos) {
+        return cables.contains(pos);
+    }
+
+    /**
+     * Get the packed positions of this net's cables.
+     *
+     * @return a new array of packed positions
+     */
+    long[] getCablePositions() {
+        return cables.toArray();
+    }
+
+    String getWorldName() {
+        return worldName;
+    }
+
     void removeCable(Block cable) {
         cable.removeMetadata(STB_ENET_ID, SensibleToolboxPlugin.getInstance());
-        cables.remove(new BlockPosition(cable.getLocation()));
+        cables.remove(BlockPosition.pack(cable.getX(), cable.getY(), cable.getZ()));
         Debugger.getInstance().debug("Enet #" + getNetID() + ": removed cable @ " + cable);
     }
 
+    /**
+     * Move some of this net's cables to another net.
+     *
+     * @param positions the packed positions of the cables to move
+     * @param other the net to move them to
+     */
+    void moveCables(LongHashSet positions, STBEnergyNet other) {
+        World w = Bukkit.getWorld(worldName);
+        for (long pos : positions.toArray()) {
+            if (cables.remove(pos)) {
+                other.addCable(w.getBlockAt(BlockPosition.unpackX(pos), BlockPosition.unpackY(pos), BlockPosition.unpackZ(pos)));
+            }
+        }
+    }
+
+    /**
+     * Move all of another net's cables and machines into this net, leaving
+     * the other net empty.  The other net's cables aren't touched; they
+     * keep its ID, which the manager resolves to this net from now on.
+     *
+     * @param other the net to merge into this one
+     */
+    void absorb(STBEnergyNet other) {
+        for (long pos : other.cables.toArray()) {
+            cables.add(pos);
+        }
+        for (ChargeableBlock machine : other.machines) {
+            List<BlockFace> faces = machine.getFacesForNet(other);
+            machine.detachFromEnergyNet(other);
+            for (BlockFace face : faces) {
+                machine.attachToEnergyNet(this, face);
+            }
+            machines.add(machine);
+        }
+        mergedIDs.add(other.getNetID());
+        mergedIDs.addAll(other.mergedIDs);
+        other.cables.clear();
+        other.machines.clear();
+        other.mergedIDs.clear();
+        findSourcesAndSinks();
+        Debugger.getInstance().debug("Enet #" + getNetID() + ": merged in enet #" + other.getNetID() +
+                ", now " + cables.size() + " cables & " + machines.size() + " machines");
+    }
+
+    List<Integer> getMergedIDs() {
+        return mergedIDs;
+    }
+
     public void shutdown() {
         World w = Bukkit.getWorld(worldName);
         if (w != null) {
-            for (BlockPosition pos : cables) {
-                Block b = w.getBlockAt(pos.getX(), pos.getY(), pos.getZ());
-                b.removeMetadata(STB_ENET_ID, SensibleToolboxPlugin.getInstance());
+            for (long pos : cables.toArray()) {
+                int x = BlockPosition.unpackX(pos), z = BlockPosition.unpackZ(pos);
+                // don't load chunks just for this; a stale net ID in a cable's metadata is ignored
+                if (w.isChunkLoaded(x >> 4, z >> 4)) {
+                    w.getBlockAt(x, BlockPosition.unpackY(pos), z).removeMetadata(STB_ENET_ID, SensibleToolboxPlugin.getInstance());
+                }
             }
         }
         cables.clear();
@@ -184,48 +323,58 @@ public class STBEnergyNet implements EnergyNet {
         return netID;
     }
 
+    /**
+     * Move energy from this net's sources to its sinks.  Each machine's
+     * charge and limits are read once into the solver arrays, and each
+     * machine's charge is set at most once, so the side effects of a
+     * charge change (meter repaint, sign label, saving) only happen once
+     * per machine per tick, even for a machine which is both a source and
+     * a sink.
+     * <p/>
+     * A net with no supply or no demand goes quiescent, and isn't
+     * recalculated until something wakes it up: a change to one of its
+     * machines' charge or charge direction, or to its set of machines.
+     */
     void tick() {
-        totalDemand = totalSupply = 0;
-
+        if (quiescent) {
+            return;
+        }
         long tickRate = enetManager.getTickRate();
+        int n = members.length;
 
-        for (ChargeableBlock machine : energySources) {
-            if (machine.getCharge() > 0) {
-                totalSupply += Math.min(machine.getCharge(), machine.getChargeRate() * tickRate);
-            }
-        }
-        for (ChargeableBlock machine : energySinks) {
-            if (machine.getCharge() < machine.getMaxCharge()) {
-                double needed = machine.getMaxCharge() - machine.getCharge();
-                needed = Math.min(needed, machine.getChargeRate() * tickRate);
-                totalDemand += needed;
+        double sumSupply = 0, sumDemand = 0;
+        for (int i = 0; i < n; i++) {
+            ChargeableBlock machine = members[i];
+            double c = machine.getCharge();
+            double maxTransfer = machine.getChargeRate() * tickRate;
+            charge[i] = c;
+            supply[i] = isSource[i] && c > 0 ? Math.min(c, maxTransfer) : 0;
+            if (isSink[i]) {
+                double max = machine.getMaxCharge();
+                demand[i] = c < max ? Math.min(max - c, maxTransfer) : 0;
+            } else {
+                demand[i] = 0;
             }
+            sumSupply += supply[i];
+            sumDemand += demand[i];
         }
+        totalSupply = sumSupply;
+        totalDemand = sumDemand;
 
         if (totalDemand == 0.0 || totalSupply == 0.0) {
+            quiescent = true;
             return;
         }
 
+        // if there's enough power to supply all sinks, sources only give what's needed;
+        // if there's more demand than supply, sinks share out what there is
         double ratio = totalDemand / totalSupply;
-        if (ratio <= 1.0) {
-            // there's enough power to supply all sinks
-            for (ChargeableBlock source : energySources) {
-                double toTake = Math.min(source.getCharge(), source.getChargeRate() * tickRate);
-                source.setCharge(source.getCharge() - toTake * ratio);
-            }
-            for (ChargeableBlock sink : energySinks) {
-                double toGive = Math.min(sink.getMaxCharge() - sink.getCharge(), sink.getChargeRate() * tickRate);
-                sink.setCharge(sink.getCharge() + toGive);
-            }
-        } else {
-            // more demand than supply!
-            for (ChargeableBlock source : energySources) {
-                double toTake = Math.min(source.getCharge(), source.getChargeRate() * tickRate);
-                source.setCharge(source.getCharge() - toTake);
-            }
-            for (ChargeableBlock sink : energySinks) {
-                double toGive = Math.min(sink.getMaxCharge() - sink.getCharge(), sink.getChargeRate() * tickRate);
-                sink.setCharge(sink.getCharge() + toGive / ratio);
+        double supplyFactor = Math.min(1.0, ratio);
+        double demandFactor = Math.min(1.0, 1.0 / ratio);
+        for (int i = 0; i < n; i++) {
+            double delta = demand[i] * demandFactor - supply[i] * supplyFactor;
+            if (delta != 0) {
+                members[i].setCharge(charge[i] + delta);
             }
         }
     }
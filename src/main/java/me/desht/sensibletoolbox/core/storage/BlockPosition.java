@@ -50,6 +50,35 @@ public class BlockPosition {
         return z;
     }
 
+    /**
+     * Pack a block position into a single long: 26 bits each for X and Z,
+     * and 12 bits for Y.
+     *
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     * @return the packed position
+     */
+    public static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 38);
+    }
+
+    public static int unpackY(long packed) {
+        return (int) (packed << 52 >> 52);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) (packed << 26 >> 38);
+    }
+
+    public long pack() {
+        return pack(x, y, z);
+    }
+
     public static BlockPosition fromString(String s) {
         String[] f = s.split(",");
         return new BlockPosition(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]));
@@ -0,0 +1,229 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding for frozen STB block state, as stored in the
+ * <code>bdata</code> column of the blocks table.  This is a replacement for
+ * YAML text: strings, numbers, booleans, string lists and nested sections
+ * are stored as tagged values, and base64-encoded item blobs (as created by
+ * {@link me.desht.sensibletoolbox.api.util.BukkitSerialization}) are stored
+ * as raw bytes, which saves both the base64 overhead and YAML's quoting and
+ * line folding.  Any other value is stored as a YAML fragment.
+ * <p/>
+ * Format: a magic byte and a version byte, followed by the root section.
+ * A section is a count of entries, followed by that many (key, tag, value)
+ * triples.
+ */
+public class BlockStateCodec {
+    public static final byte MAGIC = (byte) 0xB5;
+    public static final byte VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte TAG_SECTION = 1;
+    private static final byte TAG_STRING = 2;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_LONG = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_BOOLEAN = 6;
+    private static final byte TAG_STRING_LIST = 7;
+    private static final byte TAG_BLOB = 8;
+    private static final byte TAG_YAML = 9;
+
+    // all Java-serialized object streams start with 0xACED, which is "rO0" in base64
+    private static final String SERIALIZED_PREFIX = "rO0";
+
+    /**
+     * Encode the given configuration.
+     *
+     * @param conf the configuration to encode
+     * @return the encoded data
+     */
+    public static byte[] encode(ConfigurationSection conf) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            writeSection(out, conf);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // can't happen with a byte array stream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decode some encoded data back into a configuration.
+     *
+     * @param data the encoded data
+     * @return a configuration
+     * @throws IOException if the data is not in a recognised format
+     */
+    public static YamlConfiguration decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readByte() != MAGIC) {
+            throw new IOException("not STB binary block data");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported STB block data version " + version);
+        }
+        YamlConfiguration conf = new YamlConfiguration();
+        readSection(in, conf);
+        return conf;
+    }
+
+    private static void writeSection(DataOutputStream out, ConfigurationSection conf) throws IOException {
+        List<String> keys = new ArrayList<String>(conf.getKeys(false));
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            writeString(out, key);
+            writeValue(out, conf.get(key));
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object val) throws IOException {
+        if (val instanceof ConfigurationSection) {
+            out.writeByte(TAG_SECTION);
+            writeSection(out, (ConfigurationSection) val);
+        } else if (val instanceof String) {
+            String s = (String) val;
+            byte[] blob = s.startsWith(SERIALIZED_PREFIX) ? decodeBlob(s) : null;
+            if (blob != null) {
+                out.writeByte(TAG_BLOB);
+                out.writeInt(blob.length);
+                out.write(blob);
+            } else {
+                out.writeByte(TAG_STRING);
+                writeString(out, s);
+            }
+        } else if (val instanceof Integer || val instanceof Short || val instanceof Byte) {
+            out.writeByte(TAG_INT);
+            out.writeInt(((Number) val).intValue());
+        } else if (val instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) val);
+        } else if (val instanceof Double || val instanceof Float) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) val).doubleValue());
+        } else if (val instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) val);
+        } else if (isStringList(val)) {
+            List<?> list = (List<?>) val;
+            out.writeByte(TAG_STRING_LIST);
+            out.writeInt(list.size());
+            for (Object o : list) {
+                writeString(out, (String) o);
+            }
+        } else {
+            YamlConfiguration wrapper = new YamlConfiguration();
+            wrapper.set("v", val);
+            out.writeByte(TAG_YAML);
+            writeString(out, wrapper.saveToString());
+        }
+    }
+
+    private static void readSection(DataInputStream in, ConfigurationSection conf) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String key = readString(in);
+            byte tag = in.readByte();
+            switch (tag) {
+                case TAG_SECTION:
+                    readSection(in, conf.createSection(key));
+                    break;
+                case TAG_STRING:
+                    conf.set(key, readString(in));
+                    break;
+                case TAG_INT:
+                    conf.set(key, in.readInt());
+                    break;
+                case TAG_LONG:
+                    conf.set(key, in.readLong());
+                    break;
+                case TAG_DOUBLE:
+                    conf.set(key, in.readDouble());
+                    break;
+                case TAG_BOOLEAN:
+                    conf.set(key, in.readBoolean());
+                    break;
+                case TAG_STRING_LIST:
+                    int len = in.readInt();
+                    List<String> list = new ArrayList<String>(len);
+                    for (int j = 0; j < len; j++) {
+                        list.add(readString(in));
+                    }
+                    conf.set(key, list);
+                    break;
+                case TAG_BLOB:
+                    byte[] blob = new byte[in.readInt()];
+                    in.readFully(blob);
+                    conf.set(key, Base64Coder.encodeLines(blob));
+                    break;
+                case TAG_YAML:
+                    YamlConfiguration wrapper = new YamlConfiguration();
+                    try {
+                        wrapper.loadFromString(readString(in));
+                    } catch (InvalidConfigurationException e) {
+                        throw new IOException("bad YAML value for key " + key, e);
+                    }
+                    conf.set(key, wrapper.get("v"));
+                    break;
+                default:
+                    throw new IOException("unknown tag " + tag + " for key " + key);
+            }
+        }
+    }
+
+    private static boolean isStringList(Object val) {
+        if (!(val instanceof List)) {
+            return false;
+        }
+        for (Object o : (List<?>) val) {
+            if (!(o instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode a base64 item blob, but only if it will be re-encoded to exactly
+     * the same string; otherwise it must be stored as a plain string.
+     *
+     * @param s the string to check
+     * @return the decoded bytes, or null if the string isn't a canonical base64 blob
+     */
+    private static byte[] decodeBlob(String s) {
+        try {
+            byte[] blob = Base64Coder.decodeLines(s);
+            return Base64Coder.encodeLines(blob).equals(s) ? blob : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+}
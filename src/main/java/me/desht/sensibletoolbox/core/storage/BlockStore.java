@@ -0,0 +1,88 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Persistent storage for STB blocks.  The location manager loads blocks
+ * through the <em>load</em> methods on the main server thread, while the DB
+ * writer thread applies changes through {@link #upsert(UpdateRecord)} and
+ * {@link #delete(UpdateRecord)}, making them durable with {@link #commit()}.
+ * Implementations must therefore be safe for use by those two threads at
+ * once.
+ * <p/>
+ * Update records passed to the write methods always have their type and
+ * data available, and each location appears at most once between two
+ * commits.
+ */
+public interface BlockStore {
+    /**
+     * Receives the rows found by one of the load methods.
+     */
+    interface RowHandler {
+        void handle(StoredBlock row) throws IOException;
+    }
+
+    /**
+     * Load all the blocks in the given world.
+     *
+     * @param worldID the world's UUID
+     * @param handler receives each stored block
+     * @throws IOException if there is a problem reading from the store
+     */
+    void loadWorld(UUID worldID, RowHandler handler) throws IOException;
+
+    /**
+     * Load all the blocks of the given type in the given world.
+     *
+     * @param worldID the world's UUID
+     * @param type the STB item type ID
+     * @param handler receives each stored block
+     * @throws IOException if there is a problem reading from the store
+     */
+    void loadType(UUID worldID, String type, RowHandler handler) throws IOException;
+
+    /**
+     * Load all the blocks in the given chunk.
+     *
+     * @param worldID the world's UUID
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @param handler receives each stored block
+     * @throws IOException if there is a problem reading from the store
+     */
+    void loadChunk(UUID worldID, int chunkX, int chunkZ, RowHandler handler) throws IOException;
+
+    /**
+     * Store a block, replacing any existing block at the same location.
+     * The change is not durable until {@link #commit()} is called.
+     *
+     * @param rec the update record
+     * @throws IOException if there is a problem writing to the store
+     */
+    void upsert(UpdateRecord rec) throws IOException;
+
+    /**
+     * Remove the block at the record's location.  The change is not durable
+     * until {@link #commit()} is called.
+     *
+     * @param rec the update record
+     * @throws IOException if there is a problem writing to the store
+     */
+    void delete(UpdateRecord rec) throws IOException;
+
+    /**
+     * Durably apply all changes since the last commit.  If this throws an
+     * exception, those changes are discarded.
+     *
+     * @throws IOException if there is a problem writing to the store
+     */
+    void commit() throws IOException;
+
+    /**
+     * Close the store.  Any uncommitted changes are discarded.
+     *
+     * @throws IOException if there is a problem closing the store
+     */
+    void close() throws IOException;
+}
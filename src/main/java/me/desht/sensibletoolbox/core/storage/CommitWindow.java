@@ -0,0 +1,42 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import me.desht.sensibletoolbox.util.LongHashSet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Tracks the locations which have had a record queued for the DB writer
+ * since the last COMMIT was queued.  A batched store is free to reorder the
+ * records within a commit (the SQLite store runs all of a commit's deletes
+ * before its upserts), so each location may only appear once per commit;
+ * a second record for a location has to go after a COMMIT.
+ */
+class CommitWindow {
+    private final Map<UUID, LongHashSet> locations = new HashMap<UUID, LongHashSet>();
+
+    /**
+     * Add a location to the window.
+     *
+     * @param worldID the world's UUID
+     * @param pos the packed block position
+     * @return true if the location was added; false if it already has a
+     *         record in the window, so a COMMIT must be queued first
+     */
+    boolean add(UUID worldID, long pos) {
+        LongHashSet set = locations.get(worldID);
+        if (set == null) {
+            set = new LongHashSet();
+            locations.put(worldID, set);
+        }
+        return set.add(pos);
+    }
+
+    /**
+     * Empty the window, because a COMMIT has been queued.
+     */
+    void clear() {
+        locations.clear();
+    }
+}
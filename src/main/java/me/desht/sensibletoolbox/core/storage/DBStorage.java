@@ -33,7 +33,62 @@ public class DBStorage {
                         "z INTEGER NOT NULL," +
                         "type VARCHAR(" + STBItemRegistry.MAX_ITEM_ID_LENGTH + ") NOT NULL," +
                         "data TEXT NOT NULL," +
+                        "bdata BLOB," +
+                        "chunk_x INTEGER," +
+                        "chunk_z INTEGER," +
                         "PRIMARY KEY (world_id,x,y,z)");
+        // added in 0.99.2: binary block data (see BlockStateCodec)
+        addColumnIfNotExists("blocks", "bdata", "BLOB");
+        // added in 0.99.2: chunk coordinates, for per-chunk loading
+        boolean addedX = addColumnIfNotExists("blocks", "chunk_x", "INTEGER");
+        boolean addedZ = addColumnIfNotExists("blocks", "chunk_z", "INTEGER");
+        if (addedX || addedZ) {
+            String fullName = makeTableName("blocks");
+            Statement stmt = connection.createStatement();
+            try {
+                int n = stmt.executeUpdate("UPDATE " + fullName + " SET chunk_x = x >> 4, chunk_z = z >> 4");
+                LogUtils.info("Filled in chunk coordinates for " + n + " existing rows in " + fullName);
+            } finally {
+                stmt.close();
+            }
+        }
+        createIndexIfNotExists("blocks", "chunk", "world_id,chunk_x,chunk_z");
+    }
+
+    private void createIndexIfNotExists(String tableName, String indexName, String columns) throws SQLException {
+        String fullName = makeTableName(tableName);
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + fullName + "_" + indexName + " ON " + fullName + "(" + columns + ")");
+        } catch (SQLException e) {
+            LogUtils.warning("can't create index " + indexName + " on " + fullName + ": " + e.getMessage());
+            throw e;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private boolean addColumnIfNotExists(String tableName, String column, String ddl) throws SQLException {
+        String fullName = makeTableName(tableName);
+        ResultSet cols = connection.getMetaData().getColumns(null, null, fullName, column);
+        try {
+            if (cols.next()) {
+                return false;
+            }
+        } finally {
+            cols.close();
+        }
+        Statement stmt = connection.createStatement();
+        try {
+            LogUtils.info("Adding column " + column + " to table " + fullName);
+            stmt.executeUpdate("ALTER TABLE " + fullName + " ADD COLUMN " + column + " " + ddl);
+        } catch (SQLException e) {
+            LogUtils.warning("can't add column " + column + " to " + fullName + ": " + e.getMessage());
+            throw e;
+        } finally {
+            stmt.close();
+        }
+        return true;
     }
 
     private void createTableIfNotExists(String tableName, String ddl) throws SQLException {
@@ -1,73 +1,109 @@
 package me.desht.sensibletoolbox.core.storage;
 
 import me.desht.dhutils.Debugger;
+import me.desht.dhutils.LogUtils;
 
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DBUpdaterTask implements Runnable {
     private final LocationManager manager;
-    private final PreparedStatement insertStmt;
-    private final PreparedStatement updateStmt;
-    private final PreparedStatement deleteStmt;
+    private final BlockStore store;
+    // records passed to the store since the last commit
+    private final List<UpdateRecord> uncommitted = new ArrayList<UpdateRecord>();
 
-    public DBUpdaterTask(LocationManager manager) throws SQLException {
+    public DBUpdaterTask(LocationManager manager, BlockStore store) {
         this.manager = manager;
-        String tableName = DBStorage.makeTableName("blocks");
-        insertStmt = manager.getDbStorage().getConnection().prepareStatement("INSERT INTO " + tableName + " VALUES(?,?,?,?,?,?)");
-        updateStmt = manager.getDbStorage().getConnection().prepareStatement("UPDATE " + tableName + " SET data = ?, type = ? WHERE world_id = ? and x = ? and y = ? and z = ?");
-        deleteStmt = manager.getDbStorage().getConnection().prepareStatement("DELETE FROM " + tableName + " WHERE world_id = ? and x = ? and y = ? and z = ?");
+        this.store = store;
     }
 
     @Override
     public void run() {
-        Debugger.getInstance().debug("database writer thread starting");
+        Debugger.getInstance().debug("database writer thread starting (store: " + store.getClass().getSimpleName() + ")");
         boolean finished = false;
         while (!finished) {
             try {
                 UpdateRecord rec = manager.getUpdateRecord(); // block till available
-                int n = 0;
-                Debugger.getInstance().debug("DB write [" + rec + "]");
-                switch (rec.getOp()) {
-                    case FINISH:
-                        finished = true;
-                        break;
-                    case COMMIT:
-                        manager.getDbStorage().getConnection().commit();
-                        break;
-                    case INSERT:
-                        insertStmt.setString(1, rec.getWorldID().toString());
-                        insertStmt.setInt(2, rec.getX());
-                        insertStmt.setInt(3, rec.getY());
-                        insertStmt.setInt(4, rec.getZ());
-                        insertStmt.setString(5, rec.getType());
-                        insertStmt.setString(6, rec.getData());
-                        n = insertStmt.executeUpdate();
-                        break;
-                    case UPDATE:
-                        updateStmt.setString(1, rec.getData());
-                        updateStmt.setString(2, rec.getType());
-                        updateStmt.setString(3, rec.getWorldID().toString());
-                        updateStmt.setInt(4, rec.getX());
-                        updateStmt.setInt(5, rec.getY());
-                        updateStmt.setInt(6, rec.getZ());
-                        n = updateStmt.executeUpdate();
-                        break;
-                    case DELETE:
-                        deleteStmt.setString(1, rec.getWorldID().toString());
-                        deleteStmt.setInt(2, rec.getX());
-                        deleteStmt.setInt(3, rec.getY());
-                        deleteStmt.setInt(4, rec.getZ());
-                        n = deleteStmt.executeUpdate();
-                        break;
-                }
-                Debugger.getInstance().debug("DB write complete: rows modified = " + n);
+                finished = write(rec);
             } catch (InterruptedException e) {
                 e.printStackTrace();
-            } catch (SQLException e) {
+            } catch (IOException e) {
+                LogUtils.severe("can't write STB block data: " + e.getMessage());
                 e.printStackTrace();
             }
         }
         Debugger.getInstance().debug("database writer thread exiting");
     }
+
+    /**
+     * Pass a single record to the block store.
+     *
+     * @param rec the record to write
+     * @return true if this was the finishing record
+     * @throws IOException if there is a problem writing to the store
+     */
+    private boolean write(UpdateRecord rec) throws IOException {
+        Debugger.getInstance().debug(2, "DB write [" + rec + "]");
+        switch (rec.getOp()) {
+            case FINISH:
+                if (!uncommitted.isEmpty()) {
+                    commit();
+                }
+                return true;
+            case COMMIT:
+                commit();
+                if (rec.getJournalSegment() > 0) {
+                    manager.journalCommitted(rec.getJournalSegment());
+                }
+                break;
+            case INSERT:
+            case UPDATE:
+                if (isMissingData(rec) || rec.getOp() == UpdateRecord.Operation.UPDATE && isUnchanged(rec)) {
+                    manager.writeFinished(rec);
+                    break;
+                }
+                uncommitted.add(rec);
+                long upsertStart = System.nanoTime();
+                store.upsert(rec);
+                manager.getMetrics().upserted(System.nanoTime() - upsertStart);
+                break;
+            case DELETE:
+                uncommitted.add(rec);
+                long deleteStart = System.nanoTime();
+                store.delete(rec);
+                manager.getMetrics().deleted(System.nanoTime() - deleteStart);
+                break;
+        }
+        return false;
+    }
+
+    private void commit() throws IOException {
+        try {
+            long start = System.nanoTime();
+            store.commit();
+            manager.getMetrics().committed(System.nanoTime() - start);
+            for (UpdateRecord rec : uncommitted) {
+                manager.recordPersisted(rec, rec.getOp() == UpdateRecord.Operation.DELETE ? 0 : rec.getPayloadHash());
+            }
+        } finally {
+            uncommitted.clear();
+        }
+    }
+
+    private boolean isUnchanged(UpdateRecord rec) {
+        if (manager.isUnchanged(rec, rec.getPayloadHash())) {
+            Debugger.getInstance().debug(2, "DB write skipped, payload unchanged [" + rec + "]");
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isMissingData(UpdateRecord rec) {
+        if (rec.getData() == null) {
+            LogUtils.warning("no data to write for " + rec + " - skipped");
+            return true;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,282 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import me.desht.dhutils.Debugger;
+import me.desht.dhutils.LogUtils;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of block changes made since the last save.  The
+ * journal is split into numbered segment files; a new segment is started
+ * whenever a save begins, and all segments up to that one can be deleted
+ * once the save has been committed to the block store.  Any segments still
+ * present at startup hold changes which never made it into the block store,
+ * and are replayed into it.
+ * <p/>
+ * Each journal record holds a block's complete state, so replaying the
+ * journal is just a matter of applying the last record for each location.
+ */
+public class Journal {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte OP_UPSERT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private final File dir;
+    private final boolean sync;
+    private long segmentId;
+    private FileOutputStream segmentStream;
+    private DataOutputStream out;
+
+    /**
+     * Open the journal, replaying any existing segments into the given
+     * block store first.
+     *
+     * @param dir the directory to keep the journal segments in
+     * @param sync if true, sync segments to disk on every flush; otherwise
+     *             just hand them over to the operating system
+     * @param store the block store to replay into
+     * @throws IOException if the journal can't be replayed or opened
+     */
+    public Journal(File dir, boolean sync, BlockStore store) throws IOException {
+        this.dir = dir;
+        this.sync = sync;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create journal directory " + dir);
+        }
+        List<Long> ids = listSegments();
+        if (!ids.isEmpty()) {
+            replay(ids, store);
+            long last = ids.get(ids.size() - 1);
+            release(last);
+            segmentId = last;
+        }
+        openSegment(segmentId + 1);
+    }
+
+    /**
+     * Get the ID of the segment currently being appended to.
+     *
+     * @return the segment ID
+     */
+    public synchronized long getSegmentId() {
+        return segmentId;
+    }
+
+    /**
+     * Append a block's current state to the journal.
+     *
+     * @param rec an update record, with its type and data filled in
+     * @throws IOException if the record can't be written
+     */
+    public synchronized void appendUpsert(UpdateRecord rec) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        writeHeader(dos, OP_UPSERT, rec);
+        dos.writeUTF(rec.getType());
+        writeBytes(dos, rec.getData().getBytes(UTF8));
+        writeBytes(dos, rec.getBinaryData());
+        writeRecord(bytes.toByteArray());
+    }
+
+    /**
+     * Append a block removal to the journal.
+     *
+     * @param rec an update record for the block's location
+     * @throws IOException if the record can't be written
+     */
+    public synchronized void appendDelete(UpdateRecord rec) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        writeHeader(dos, OP_DELETE, rec);
+        writeRecord(bytes.toByteArray());
+    }
+
+    /**
+     * Push any buffered records out to the current segment file.
+     *
+     * @throws IOException if the records can't be written
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+        if (sync) {
+            segmentStream.getFD().sync();
+        }
+    }
+
+    /**
+     * Close the current segment and start a new one.  Called when a save
+     * begins; all the changes in the closed segment (and earlier ones) are
+     * part of that save.
+     *
+     * @return the ID of the segment which was closed
+     * @throws IOException if the new segment can't be created
+     */
+    public synchronized long rotate() throws IOException {
+        long closed = segmentId;
+        out.close();
+        openSegment(closed + 1);
+        return closed;
+    }
+
+    /**
+     * Delete all segments up to and including the given one.  Called once
+     * the save which began when the segment was closed has been committed.
+     *
+     * @param id the segment ID
+     */
+    public synchronized void release(long id) {
+        for (long n : listSegments()) {
+            if (n <= id && n != segmentId) {
+                if (!segmentFile(n).delete()) {
+                    LogUtils.warning("can't delete journal segment " + segmentFile(n));
+                }
+            }
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void openSegment(long id) throws IOException {
+        segmentId = id;
+        segmentStream = new FileOutputStream(segmentFile(id), true);
+        out = new DataOutputStream(new BufferedOutputStream(segmentStream));
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+    }
+
+    private List<Long> listSegments() {
+        List<Long> res = new ArrayList<Long>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        res.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    private void writeRecord(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    private static void writeHeader(DataOutputStream dos, byte op, UpdateRecord rec) throws IOException {
+        dos.writeByte(op);
+        dos.writeLong(rec.getWorldID().getMostSignificantBits());
+        dos.writeLong(rec.getWorldID().getLeastSignificantBits());
+        dos.writeInt(rec.getX());
+        dos.writeInt(rec.getY());
+        dos.writeInt(rec.getZ());
+    }
+
+    private static void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            dos.writeInt(-1);
+        } else {
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private void replay(List<Long> ids, BlockStore store) throws IOException {
+        long start = System.nanoTime();
+        // only the latest record for each location matters
+        Map<UpdateRecord, UpdateRecord> latest = new LinkedHashMap<UpdateRecord, UpdateRecord>();
+        int nRecords = 0;
+        for (long id : ids) {
+            nRecords += readSegment(segmentFile(id), latest);
+        }
+        for (UpdateRecord rec : latest.values()) {
+            if (rec.getOp() == UpdateRecord.Operation.DELETE) {
+                store.delete(rec);
+            } else {
+                store.upsert(rec);
+            }
+        }
+        store.commit();
+        LogUtils.info(String.format("Replayed %d journal records (%d blocks) from %d segment(s) in %.2fms",
+                nRecords, latest.size(), ids.size(), (System.nanoTime() - start) / 1000000.0));
+    }
+
+    private int readSegment(File file, Map<UpdateRecord, UpdateRecord> latest) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int n = 0;
+        try {
+            while (true) {
+                int len = in.readInt();
+                int crc = in.readInt();
+                if (len < 0 || len > MAX_RECORD_SIZE) {
+                    LogUtils.warning("Bad record length in journal segment " + file + " - ignoring rest of segment");
+                    break;
+                }
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if ((int) check.getValue() != crc) {
+                    LogUtils.warning("Bad checksum in journal segment " + file + " - ignoring rest of segment");
+                    break;
+                }
+                UpdateRecord rec = decode(payload);
+                latest.remove(rec);  // keep the map in order of most recent change
+                latest.put(rec, rec);
+                n++;
+            }
+        } catch (EOFException e) {
+            // end of segment, possibly with a partly-written final record
+        } finally {
+            in.close();
+        }
+        Debugger.getInstance().debug("read " + n + " records from journal segment " + file);
+        return n;
+    }
+
+    private static UpdateRecord decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = in.readByte();
+        UUID worldID = new UUID(in.readLong(), in.readLong());
+        int x = in.readInt();
+        int y = in.readInt();
+        int z = in.readInt();
+        if (op == OP_DELETE) {
+            return new UpdateRecord(UpdateRecord.Operation.DELETE, worldID, x, y, z);
+        } else if (op == OP_UPSERT) {
+            UpdateRecord rec = new UpdateRecord(UpdateRecord.Operation.UPDATE, worldID, x, y, z);
+            rec.setType(in.readUTF());
+            rec.setData(new String(readBytes(in), UTF8));
+            rec.setBinaryData(readBytes(in));
+            return rec;
+        } else {
+            throw new IOException("unknown journal record type " + op);
+        }
+    }
+}
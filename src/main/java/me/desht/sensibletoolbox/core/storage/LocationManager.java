@@ -1,109 +1,435 @@
 package me.desht.sensibletoolbox.core.storage;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import me.desht.dhutils.Debugger;
 import me.desht.dhutils.LogUtils;
 import me.desht.dhutils.MiscUtil;
-import me.desht.dhutils.PersistableLocation;
 import me.desht.sensibletoolbox.SensibleToolboxPlugin;
 import me.desht.sensibletoolbox.api.SensibleToolbox;
 import me.desht.sensibletoolbox.api.items.BaseSTBBlock;
+import me.desht.sensibletoolbox.api.items.BlockSnapshot;
 import me.desht.sensibletoolbox.api.items.BaseSTBItem;
-import me.desht.sensibletoolbox.api.util.STBUtil;
+import me.desht.sensibletoolbox.util.LongHashMap;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.material.Sign;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LocationManager {
     private static LocationManager instance;
+    private static final int LOAD_BATCH_SIZE = 256;
 
-    private final Set<String> deferredBlocks = new HashSet<String>();
-    private final PreparedStatement queryStmt;
-    private final PreparedStatement queryTypeStmt;
+    private final boolean lazyLoading;
+    private ExecutorService loaderPool;  // only exists during the initial load
     private long lastSave;
     private int saveInterval;  // ms
-    private long totalTicks;
+    private long saveBudget;  // ns per tick; 0 means save everything in one go
+    private long tickBudget;  // ns per tick for ticking blocks; 0 means no limit
+    private int tickPhasePeriod;  // ticks over which the phases of fast-ticking blocks are spread
+    private long deferralTicks;  // ticks on which some due blocks were deferred
+    private long deferredTickers;  // total blocks deferred, counted once for each tick they were held back
+    private long lateBlocks, totalLateness, maxLateness;  // blocks run late because of deferral, and by how many ticks
+    private long totalTicks;  // also the global tick counter, from which blocks' ticks lived are derived
     private long totalTime;
-    private final DBStorage dbStorage;
+    private final BlockStore blockStore;
+    private final Journal journal;
+    private final ExecutorService journalWriter;  // appends journal records in order, off the main thread
+    private long journalSegmentId;  // the segment which the journal writer is currently appending to
+    private final int journalFlushInterval;  // ticks
+    private long journalSegment;  // segment to release when the current incremental save is committed
     private final Thread updaterTask;
+    private final StorageMetrics metrics = new StorageMetrics();
+    private final int statsLogInterval;  // ms; 0 means no periodic stats logging
+    private long lastStatsLog;
+    private final ExecutorService serializer;
+    private final boolean binaryFormat;
     private static final BlockAccess blockAccess = new BlockAccess();
 
     // tracks those blocks (on a per-world basis) which need to do something on a server tick
-    private final Map<UUID, Set<BaseSTBBlock>> allTickers = new HashMap<UUID, Set<BaseSTBBlock>>();
-    // indexes all loaded blocks by world and (frozen) location
-    private final Map<UUID, Map<String, BaseSTBBlock>> blockIndex = new HashMap<UUID, Map<String, BaseSTBBlock>>();
-    // tracks the pending updates by (frozen) location since the last save was done
-    private final Map<String, UpdateRecord> pendingUpdates = new HashMap<String, UpdateRecord>();
+    // (blocks' equals() depends on their location, which can change, so these are identity maps)
+    private final Map<UUID, Map<BaseSTBBlock, TickerWheel.Entry>> allTickers = new HashMap<UUID, Map<BaseSTBBlock, TickerWheel.Entry>>();
+    // schedules the tickers by the tick they're next due on; tickers in unloaded chunks are parked, off the wheel
+    private final TickerWheel tickerWheel = new TickerWheel();
+    private final TickerWheel.Visitor tickVisitor = new TickVisitor();
+    // non-null only while tick profiling is enabled
+    private TickProfiler tickProfiler;
+    // the next phase offset to hand out, by tick rate
+    private final Map<Integer, Integer> nextTickPhase = new HashMap<Integer, Integer>();
+    // indexes all loaded blocks by world and packed location (see UpdateRecord.packPosition())
+    private final Map<UUID, LongHashMap<BaseSTBBlock>> blockIndex = new HashMap<UUID, LongHashMap<BaseSTBBlock>>();
+    // indexes the auxiliary blocks of multi-block structures by world and packed location
+    private final Map<UUID, LongHashMap<BaseSTBBlock>> multiBlockIndex = new HashMap<UUID, LongHashMap<BaseSTBBlock>>();
+    // indexes all loaded blocks by world and packed chunk coords (see chunkKey())
+    private final Map<UUID, LongHashMap<Set<BaseSTBBlock>>> chunkIndex = new HashMap<UUID, LongHashMap<Set<BaseSTBBlock>>>();
+    // tracks the pending updates by world and packed location since the last save was done
+    private final Map<UUID, LongHashMap<UpdateRecord>> pendingUpdates = new HashMap<UUID, LongHashMap<UpdateRecord>>();
     // a blocking queue is used to pass actual updates over to the DB writer thread
     private final BlockingQueue<UpdateRecord> updateQueue = new LinkedBlockingQueue<UpdateRecord>();
+    // the locations with a record in updateQueue since the last COMMIT was queued
+    private final CommitWindow commitWindow = new CommitWindow();
+    // records from an incremental save cycle which is being spread over several ticks, in the order they're saved
+    private final Set<UpdateRecord> saveCycle = new LinkedHashSet<UpdateRecord>();
+    // in lazy loading mode, the save cycle's records by world and packed chunk coords; records already saved are left in
+    private final Map<UUID, LongHashMap<List<UpdateRecord>>> saveCycleChunks = new HashMap<UUID, LongHashMap<List<UpdateRecord>>>();
+    // in lazy loading mode, records written as their chunk was unloaded which the DB writer hasn't committed yet,
+    // by world and packed location; shared with the DB writer thread, and locked on itself
+    private final Map<UUID, LongHashMap<UpdateRecord>> unloadedWrites = new HashMap<UUID, LongHashMap<UpdateRecord>>();
+    // hash of the payload last written to the DB, by world and packed location; shared with the DB writer thread
+    private final ConcurrentMap<UUID, Map<Long, Long>> persistedHashes = new ConcurrentHashMap<UUID, Map<Long, Long>>();
+    // number of UPDATE records dropped because the block's payload hadn't changed
+    private final AtomicLong suppressedWrites = new AtomicLong();
+    // locations changed since the journal was last flushed, by world and packed location
+    private final Map<UUID, LongHashMap<Location>> journalDirty = new HashMap<UUID, LongHashMap<Location>>();
+    // stored rows for block types which haven't been registered (yet), by type, world and packed location
+    private final Map<String, Map<UUID, LongHashMap<StoredBlock>>> deferredRows = new HashMap<String, Map<UUID, LongHashMap<StoredBlock>>>();
+    // once startup is over, unregistered block types whose rows are no longer held in memory
+    private final Set<String> unbufferedTypes = new HashSet<String>();
+    private boolean startupDone;
+    // in lazy loading mode, the chunks (by world and packed chunk coords) whose blocks are currently loaded
+    private final Map<UUID, Set<Long>> loadedChunks = new HashMap<UUID, Set<Long>>();
 
-    private LocationManager(SensibleToolboxPlugin plugin) throws SQLException {
+    private LocationManager(SensibleToolboxPlugin plugin) {
+        binaryFormat = plugin.getConfig().getBoolean("database.binary_format", true);
+        lazyLoading = plugin.getConfig().getBoolean("database.lazy_chunk_loading", false);
         saveInterval = plugin.getConfig().getInt("save_interval", 30) * 1000;
+        saveBudget = plugin.getConfig().getLong("save_budget_ns", 0);
+        tickBudget = plugin.getConfig().getLong("tick_budget_ns", 0);
+        tickPhasePeriod = Math.max(1, plugin.getConfig().getInt("tick_phase_period", 20));
+        setTickProfiling(plugin.getConfig().getBoolean("tick_profiler", false));
         lastSave = System.currentTimeMillis();
+        statsLogInterval = plugin.getConfig().getInt("database.stats_log_interval", 0) * 1000;
+        lastStatsLog = lastSave;
+        journalFlushInterval = Math.max(1, plugin.getConfig().getInt("database.journal.flush_interval", 20));
         try {
-            dbStorage = new DBStorage();
-            dbStorage.getConnection().setAutoCommit(false);
-            queryStmt = dbStorage.getConnection().prepareStatement("SELECT * FROM " + DBStorage.makeTableName("blocks") + " WHERE world_id = ?");
-            queryTypeStmt = dbStorage.getConnection().prepareStatement("SELECT * FROM " + DBStorage.makeTableName("blocks") + " WHERE world_id = ? and type = ?");
+            blockStore = createBlockStore(plugin);
+            if (plugin.getConfig().getBoolean("database.journal.enabled", false)) {
+                // any unreleased journal segments are replayed into the store here
+                journal = new Journal(new File(plugin.getDataFolder(), "journal"),
+                        plugin.getConfig().getBoolean("database.journal.sync", false), blockStore);
+                journalSegmentId = journal.getSegmentId();
+            } else {
+                journal = null;
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw new IllegalStateException("Unable to initialise DB storage: " + e.getMessage());
         }
-        updaterTask = new Thread(new DBUpdaterTask(this));
+        updaterTask = new Thread(new DBUpdaterTask(this, blockStore));
         updaterTask.start();
+        int nThreads = plugin.getConfig().getInt("database.serializer_threads", 2);
+        serializer = nThreads > 0 ? Executors.newFixedThreadPool(nThreads, new StorageThreadFactory("STB block serializer")) : null;
+        journalWriter = journal == null ? null : Executors.newSingleThreadExecutor(new StorageThreadFactory("STB journal writer"));
     }
 
     public static synchronized LocationManager getManager() {
         if (instance == null) {
-            try {
-                instance = new LocationManager(SensibleToolboxPlugin.getInstance());
-            } catch (SQLException e) {
-                e.printStackTrace();
-                return null;
-            }
+            instance = new LocationManager(SensibleToolboxPlugin.getInstance());
         }
         return instance;
     }
 
+    private static BlockStore createBlockStore(SensibleToolboxPlugin plugin) throws IOException {
+        String storeType = plugin.getConfig().getString("database.store", "sqlite");
+        if (storeType.equalsIgnoreCase("sqlite")) {
+            return new SQLiteBlockStore(plugin.getConfig().getBoolean("database.batch_writes", true));
+        } else if (storeType.equalsIgnoreCase("log")) {
+            return new LogBlockStore(new File(plugin.getDataFolder(), "blocks.log"),
+                    plugin.getConfig().getDouble("database.log_compaction_ratio", 3.0));
+        } else {
+            throw new IllegalArgumentException("unknown block store type '" + storeType + "'");
+        }
+    }
+
     @SuppressWarnings("CloneDoesntCallSuperClone")
     @Override
     public Object clone() throws CloneNotSupportedException {
         throw new CloneNotSupportedException();
     }
 
-    DBStorage getDbStorage() {
-        return dbStorage;
-    }
-
     public void addTicker(BaseSTBBlock stb) {
         Location loc = stb.getLocation();
         World w = loc.getWorld();
-        Set<BaseSTBBlock> tickerSet = allTickers.get(w.getUID());
-        if (tickerSet == null) {
-            tickerSet = Sets.newHashSet();
-            allTickers.put(w.getUID(), tickerSet);
+        Map<BaseSTBBlock, TickerWheel.Entry> tickers = allTickers.get(w.getUID());
+        if (tickers == null) {
+            tickers = new IdentityHashMap<BaseSTBBlock, TickerWheel.Entry>();
+            allTickers.put(w.getUID(), tickers);
+        }
+        if (!tickers.containsKey(stb)) {
+            int rate = Math.max(1, stb.getTickRate());
+            int phase = stb.hasFixedTickPhase() ? 0 : allocateTickPhase(rate);
+            // starting the block's ticks lived at its phase offset means it becomes due that much sooner
+            stb.startTicking(blockAccess, totalTicks - phase);
+            stb.setAsleep(blockAccess, false);
+            // this is the only chunk check; after this, tickers are parked and unparked by chunk events
+            boolean parked = !w.isChunkLoaded(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+            tickers.put(stb, tickerWheel.schedule(stb, w.getUID(), totalTicks + rate - phase % rate, parked));
+            Debugger.getInstance().debug(2, "Added ticking block " + stb + " (rate " + rate + ", phase " + phase + (parked ? ", parked" : "") + ")");
+        }
+    }
+
+    private void removeTicker(BaseSTBBlock stb, UUID worldID) {
+        Map<BaseSTBBlock, TickerWheel.Entry> tickers = allTickers.get(worldID);
+        TickerWheel.Entry entry = tickers == null ? null : tickers.remove(stb);
+        if (entry != null) {
+            entry.cancel();
+        }
+    }
+
+    /**
+     * Take the tickers in the given chunk off the timing wheel, or put them
+     * back on.  Costs O(blocks in the chunk), once per chunk load or unload,
+     * rather than a loaded-chunk check for each ticker on each tick.
+     */
+    private void setTickersParked(World world, int chunkX, int chunkZ, boolean parked) {
+        Map<BaseSTBBlock, TickerWheel.Entry> tickers = allTickers.get(world.getUID());
+        if (tickers == null || tickers.isEmpty()) {
+            return;
+        }
+        for (BaseSTBBlock stb : getBlocksInChunk(world, chunkX, chunkZ)) {
+            TickerWheel.Entry entry = tickers.get(stb);
+            if (entry != null) {
+                setTickerParked(entry, parked);
+            }
+        }
+    }
+
+    private void setTickerParked(TickerWheel.Entry entry, boolean parked) {
+        if (parked) {
+            entry.park();
+        } else if (entry.isParked()) {
+            BaseSTBBlock stb = entry.getBlock();
+            int rate = Math.max(1, stb.getTickRate());
+            tickerWheel.unpark(entry, totalTicks + rate - stb.getTicksLived() % rate);
+        }
+    }
+
+    /**
+     * Put a sleeping block back on the tick schedule, on the next tick
+     * when its ticks lived is a multiple of its tick rate.  Called via
+     * {@link BaseSTBBlock#wakeUp()}.
+     *
+     * @param stb the block to wake
+     */
+    public void wakeTicker(BaseSTBBlock stb) {
+        stb.setAsleep(blockAccess, false);
+        Map<BaseSTBBlock, TickerWheel.Entry> tickers = allTickers.get(stb.getLocation().getWorld().getUID());
+        TickerWheel.Entry entry = tickers == null ? null : tickers.get(stb);
+        if (entry != null && entry.isAsleep()) {
+            int rate = Math.max(1, stb.getTickRate());
+            tickerWheel.wake(entry, totalTicks + rate - stb.getTicksLived() % rate);
+            Debugger.getInstance().debug(2, "Woke ticking block " + stb);
+        }
+    }
+
+    /**
+     * Count the ticking blocks which are currently asleep.
+     *
+     * @return the number of sleeping blocks
+     */
+    public int countSleepingTickers() {
+        int n = 0;
+        for (Map<BaseSTBBlock, TickerWheel.Entry> tickers : allTickers.values()) {
+            for (TickerWheel.Entry entry : tickers.values()) {
+                if (entry.isAsleep()) {
+                    n++;
+                }
+            }
         }
-        tickerSet.add(stb);
-        Debugger.getInstance().debug(2, "Added ticking block " + stb);
+        return n;
     }
 
-    private Map<String, BaseSTBBlock> getWorldIndex(World w) {
-        Map<String,BaseSTBBlock> index = blockIndex.get(w.getUID());
-        if (index == null) {
-            index = Maps.newHashMap();
-            blockIndex.put(w.getUID(), index);
+    /**
+     * Count all the ticking blocks, whether or not they're currently
+     * on the tick schedule.
+     *
+     * @return the number of ticking blocks
+     */
+    public int countTickers() {
+        int n = 0;
+        for (Map<BaseSTBBlock, TickerWheel.Entry> tickers : allTickers.values()) {
+            n += tickers.size();
+        }
+        return n;
+    }
+
+    /**
+     * Hand out phase offsets for blocks of the given tick rate in rotation,
+     * so that blocks with the same rate (in particular, the many blocks
+     * registered together when a world is loaded) are spread evenly over
+     * the ticks in their period, rather than all running on the same tick.
+     * <p/>
+     * Blocks which tick more often than the tick phase period are spread
+     * over that period instead (rounded up to a multiple of the rate); they
+     * still tick at their rate, but their ticks lived are offset, so that
+     * periodic work done when the ticks lived is a multiple of some larger
+     * interval is spread too.
+     *
+     * @param rate the tick rate
+     * @return a phase offset in the range 0 .. period - 1
+     */
+    private int allocateTickPhase(int rate) {
+        int period = rate >= tickPhasePeriod ? rate : rate * ((tickPhasePeriod + rate - 1) / rate);
+        if (period <= 1) {
+            return 0;
+        }
+        Integer phase = nextTickPhase.get(rate);
+        int res = phase == null ? 0 : phase % period;
+        nextTickPhase.put(rate, (res + 1) % period);
+        return res;
+    }
+
+    /**
+     * Set the period over which the tick phases of blocks which tick more
+     * often than that are spread (see {@link BaseSTBBlock#getTicksLived()}).
+     * Only affects blocks which start ticking after this is called.
+     *
+     * @param tickPhasePeriod the period, in ticks
+     */
+    public void setTickPhasePeriod(int tickPhasePeriod) {
+        this.tickPhasePeriod = Math.max(1, tickPhasePeriod);
+    }
+
+    /**
+     * Set the per-tick time budget for ticking blocks.  If non-zero, once
+     * this much time has been spent in a tick, any remaining due blocks
+     * (except those with a fixed tick phase) are deferred to the next tick.
+     *
+     * @param tickBudget the budget in nanoseconds, or 0 for no limit
+     */
+    public void setTickBudget(long tickBudget) {
+        this.tickBudget = tickBudget;
+    }
+
+    /**
+     * Get a summary of how often the tick budget has caused ticking blocks
+     * to be deferred.
+     *
+     * @return a summary of tick deferrals
+     */
+    public String getDeferralSummary() {
+        return String.format("%d ticks over budget, %d block deferrals, %d blocks run late (avg %.1f, max %d ticks), %d deferred now",
+                deferralTicks, deferredTickers, lateBlocks, lateBlocks == 0 ? 0.0 : totalLateness / (double) lateBlocks,
+                maxLateness, tickerWheel.getDeferredCount());
+    }
+
+    /**
+     * Turn profiling of ticking blocks on or off.  Turning it on when it's
+     * already on has no effect; turning it off discards the timings.
+     *
+     * @param enabled true to enable profiling
+     */
+    public void setTickProfiling(boolean enabled) {
+        if (enabled && tickProfiler == null) {
+            tickProfiler = new TickProfiler(totalTicks);
+        } else if (!enabled) {
+            tickProfiler = null;
+        }
+    }
+
+    /**
+     * Get the tick profiler.
+     *
+     * @return the tick profiler, or null if profiling is not enabled
+     */
+    public TickProfiler getTickProfiler() {
+        return tickProfiler;
+    }
+
+    /**
+     * Discard all the tick profiler's timings so far.
+     */
+    public void resetTickProfiler() {
+        if (tickProfiler != null) {
+            tickProfiler.reset(totalTicks);
+        }
+    }
+
+    /**
+     * Get the number of server ticks since the plugin started.
+     *
+     * @return the global tick count
+     */
+    public long getTickCount() {
+        return totalTicks;
+    }
+
+    private LongHashMap<BaseSTBBlock> getWorldIndex(World w) {
+        return getWorldMap(blockIndex, w.getUID());
+    }
+
+    private static <V> LongHashMap<V> getWorldMap(Map<UUID, LongHashMap<V>> maps, UUID worldID) {
+        LongHashMap<V> map = maps.get(worldID);
+        if (map == null) {
+            map = new LongHashMap<V>();
+            maps.put(worldID, map);
+        }
+        return map;
+    }
+
+    private static long locationKey(Location loc) {
+        return UpdateRecord.packPosition(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+    }
+
+    private void addToChunkIndex(BaseSTBBlock stb, Location loc) {
+        LongHashMap<Set<BaseSTBBlock>> index = getWorldMap(chunkIndex, loc.getWorld().getUID());
+        long key = chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+        Set<BaseSTBBlock> blocks = index.get(key);
+        if (blocks == null) {
+            blocks = new HashSet<BaseSTBBlock>();
+            index.put(key, blocks);
+        }
+        blocks.add(stb);
+    }
+
+    private void removeFromChunkIndex(BaseSTBBlock stb, Location loc) {
+        LongHashMap<Set<BaseSTBBlock>> index = chunkIndex.get(loc.getWorld().getUID());
+        if (index != null) {
+            long key = chunkKey(loc.getBlockX() >> 4, loc.getBlockZ() >> 4);
+            Set<BaseSTBBlock> blocks = index.get(key);
+            if (blocks != null && blocks.remove(stb) && blocks.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private void addAuxiliaryBlocks(BaseSTBBlock stb, Location loc) {
+        BaseSTBBlock.RelativePosition[] structure = stb.getBlockStructure();
+        if (structure.length > 0) {
+            LongHashMap<BaseSTBBlock> index = getWorldMap(multiBlockIndex, loc.getWorld().getUID());
+            for (BaseSTBBlock.RelativePosition pos : structure) {
+                Block b = stb.getAuxiliaryBlock(loc, pos);
+                index.put(UpdateRecord.packPosition(b.getX(), b.getY(), b.getZ()), stb);
+            }
+        }
+    }
+
+    private void removeAuxiliaryBlocks(BaseSTBBlock stb, Location loc) {
+        BaseSTBBlock.RelativePosition[] structure = stb.getBlockStructure();
+        LongHashMap<BaseSTBBlock> index = multiBlockIndex.get(loc.getWorld().getUID());
+        if (structure.length > 0 && index != null) {
+            for (BaseSTBBlock.RelativePosition pos : structure) {
+                Block b = stb.getAuxiliaryBlock(loc, pos);
+                long key = UpdateRecord.packPosition(b.getX(), b.getY(), b.getZ());
+                if (index.get(key) == stb) {
+                    index.remove(key);
+                }
+            }
         }
-        return index;
     }
 
     public void registerLocation(Location loc, BaseSTBBlock stb, boolean isPlacing) {
@@ -115,12 +441,14 @@ public class LocationManager {
 
         stb.setLocation(blockAccess, loc);
 
-        String locStr = MiscUtil.formatLocation(loc);
-        getWorldIndex(loc.getWorld()).put(locStr, stb);
+        long key = locationKey(loc);
+        getWorldIndex(loc.getWorld()).put(key, stb);
+        addToChunkIndex(stb, loc);
+        addAuxiliaryBlocks(stb, loc);
         stb.preRegister(blockAccess, loc, isPlacing);
 
         if (isPlacing) {
-            addPendingDBOperation(loc, locStr, UpdateRecord.Operation.INSERT);
+            addPendingDBOperation(loc, key, UpdateRecord.Operation.INSERT);
         }
 
         if (stb.getTickRate() > 0) {
@@ -131,15 +459,19 @@ public class LocationManager {
     }
 
     public void updateLocation(Location loc) {
-        addPendingDBOperation(loc, MiscUtil.formatLocation(loc), UpdateRecord.Operation.UPDATE);
+        addPendingDBOperation(loc, locationKey(loc), UpdateRecord.Operation.UPDATE);
     }
 
     public void unregisterLocation(Location loc, BaseSTBBlock stb) {
         if (stb != null) {
             stb.onBlockUnregistered(loc);
-            String locStr = MiscUtil.formatLocation(loc);
-            addPendingDBOperation(loc, locStr, UpdateRecord.Operation.DELETE);
-            getWorldIndex(loc.getWorld()).remove(locStr);
+            long key = locationKey(loc);
+            addPendingDBOperation(loc, key, UpdateRecord.Operation.DELETE);
+            getWorldIndex(loc.getWorld()).remove(key);
+            removeFromChunkIndex(stb, loc);
+            removeAuxiliaryBlocks(stb, loc);
+            // a sleeping ticker won't be visited again to notice the removal
+            removeTicker(stb, loc.getWorld().getUID());
             Debugger.getInstance().debug("Unregistered " + stb + " @ " + loc);
         } else {
             LogUtils.warning("Attempt to unregister non-existent STB block @ " + loc);
@@ -157,42 +489,56 @@ public class LocationManager {
 
         // TODO: translate multi-block structures
 
-        String locStr = MiscUtil.formatLocation(oldLoc);
-        addPendingDBOperation(oldLoc, locStr, UpdateRecord.Operation.DELETE);
-        getWorldIndex(oldLoc.getWorld()).remove(locStr);
+        long key = locationKey(oldLoc);
+        addPendingDBOperation(oldLoc, key, UpdateRecord.Operation.DELETE);
+        getWorldIndex(oldLoc.getWorld()).remove(key);
+        removeFromChunkIndex(stb, oldLoc);
+        removeAuxiliaryBlocks(stb, oldLoc);
 
         stb.moveTo(blockAccess, oldLoc, newLoc);
 
-        locStr = MiscUtil.formatLocation(newLoc);
-        addPendingDBOperation(newLoc, locStr, UpdateRecord.Operation.INSERT);
-        getWorldIndex(newLoc.getWorld()).put(locStr, stb);
+        key = locationKey(newLoc);
+        addPendingDBOperation(newLoc, key, UpdateRecord.Operation.INSERT);
+        getWorldIndex(newLoc.getWorld()).put(key, stb);
+        addToChunkIndex(stb, newLoc);
+        addAuxiliaryBlocks(stb, newLoc);
+        Map<BaseSTBBlock, TickerWheel.Entry> tickers = allTickers.get(newLoc.getWorld().getUID());
+        TickerWheel.Entry entry = tickers == null ? null : tickers.get(stb);
+        if (entry != null) {
+            setTickerParked(entry, !newLoc.getWorld().isChunkLoaded(newLoc.getBlockX() >> 4, newLoc.getBlockZ() >> 4));
+        }
 
         Debugger.getInstance().debug("moved " + stb + " from " + oldLoc + " to " + newLoc);
     }
 
-    private void addPendingDBOperation(Location loc, String locStr, UpdateRecord.Operation op) {
-        UpdateRecord existingRec = pendingUpdates.get(locStr);
+    private void addPendingDBOperation(Location loc, long key, UpdateRecord.Operation op) {
+        UUID worldID = loc.getWorld().getUID();
+        if (journal != null) {
+            getWorldMap(journalDirty, worldID).put(key, loc);
+        }
+        LongHashMap<UpdateRecord> pending = getWorldMap(pendingUpdates, worldID);
+        UpdateRecord existingRec = pending.get(key);
         switch (op) {
             case INSERT:
                 if (existingRec == null) {
                     // brand new insertion
-                    pendingUpdates.put(locStr, new UpdateRecord(UpdateRecord.Operation.INSERT, loc));
+                    pending.put(key, new UpdateRecord(UpdateRecord.Operation.INSERT, loc));
                 } else if (existingRec.getOp() == UpdateRecord.Operation.DELETE) {
                     // re-inserting where a block was just deleted
-                    pendingUpdates.put(locStr, new UpdateRecord(UpdateRecord.Operation.UPDATE, loc));
+                    pending.put(key, new UpdateRecord(UpdateRecord.Operation.UPDATE, loc));
                 }
                 break;
             case UPDATE:
                 if (existingRec == null || existingRec.getOp() != UpdateRecord.Operation.INSERT) {
-                    pendingUpdates.put(locStr, new UpdateRecord(UpdateRecord.Operation.UPDATE, loc));
+                    pending.put(key, new UpdateRecord(UpdateRecord.Operation.UPDATE, loc));
                 }
                 break;
             case DELETE:
                 if (existingRec != null && existingRec.getOp() == UpdateRecord.Operation.INSERT) {
                     // remove a recent insertion
-                    pendingUpdates.remove(locStr);
+                    pending.remove(key);
                 } else {
-                    pendingUpdates.put(locStr, new UpdateRecord(UpdateRecord.Operation.DELETE, loc));
+                    pending.put(key, new UpdateRecord(UpdateRecord.Operation.DELETE, loc));
                 }
                 break;
             default:
@@ -221,18 +567,39 @@ public class LocationManager {
      * @return the STB block at the given location, or null if no matching item
      */
     public BaseSTBBlock get(Location loc, boolean checkSigns) {
-        Block b = loc.getBlock();
-        if (checkSigns && (b.getType() == Material.WALL_SIGN || b.getType() == Material.SIGN_POST)) {
-            Sign sign = (Sign) b.getState().getData();
-            b = b.getRelative(sign.getAttachedFace());
+        if (checkSigns) {
+            Block b = loc.getBlock();
+            if (b.getType() == Material.WALL_SIGN || b.getType() == Material.SIGN_POST) {
+                Sign sign = (Sign) b.getState().getData();
+                b = b.getRelative(sign.getAttachedFace());
+                return get(b.getWorld().getUID(), b.getX(), b.getY(), b.getZ());
+            }
         }
-        BaseSTBBlock stb = (BaseSTBBlock) STBUtil.getMetadataValue(b, BaseSTBBlock.STB_BLOCK);
-        if (stb != null) {
-            return stb;
-        } else {
+        return get(loc.getWorld().getUID(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+    }
+
+    /**
+     * Get the STB block at the given position, using the location manager's
+     * own index.  The Bukkit metadata set on STB blocks is maintained for the
+     * benefit of other plugins, but isn't used here.
+     *
+     * @param worldID the world's UUID
+     * @param x the X coordinate
+     * @param y the Y coordinate
+     * @param z the Z coordinate
+     * @return the STB block at the given position, or null if there is none
+     */
+    public BaseSTBBlock get(UUID worldID, int x, int y, int z) {
+        long key = UpdateRecord.packPosition(x, y, z);
+        LongHashMap<BaseSTBBlock> index = blockIndex.get(worldID);
+        BaseSTBBlock stb = index == null ? null : index.get(key);
+        if (stb == null) {
             // perhaps it's part of a multi-block structure
-            return (BaseSTBBlock) STBUtil.getMetadataValue(b, BaseSTBBlock.STB_MULTI_BLOCK);
+            index = multiBlockIndex.get(worldID);
+            stb = index == null ? null : index.get(key);
         }
+        // a block which is being broken has already lost its metadata, and shouldn't be found
+        return stb == null || stb.isPendingRemoval() ? null : stb;
     }
 
     /**
@@ -268,142 +635,847 @@ public class LocationManager {
     }
 
     /**
-     * Get all the STB blocks in the given chunk
+     * Get all the STB blocks in the given chunk.  The returned list is a
+     * copy, which may be freely modified.
      *
      * @param chunk the chunk to check
      * @return an array of STB block objects
      */
     public List<BaseSTBBlock> get(Chunk chunk) {
-        List<BaseSTBBlock> res = new ArrayList<BaseSTBBlock>();
-        for (BaseSTBBlock stb : listBlocks(chunk.getWorld(), false)) {
-            PersistableLocation pLoc = stb.getPersistableLocation();
-            if ((int) pLoc.getX() >> 4 == chunk.getX() && (int) pLoc.getZ() >> 4 == chunk.getZ()) {
-                res.add(stb);
-            }
-        }
-        return res;
+        return new ArrayList<BaseSTBBlock>(getBlocksInChunk(chunk.getWorld(), chunk.getX(), chunk.getZ()));
+    }
+
+    /**
+     * Get all the STB blocks whose base block is in the given chunk, without
+     * copying them.  The returned collection is a read-only view, and must
+     * not be held on to; blocks must not be registered, unregistered or
+     * moved while it's being iterated over.
+     *
+     * @param world the world
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @return a read-only collection of STB blocks; empty if there are none
+     */
+    public Collection<BaseSTBBlock> getBlocksInChunk(World world, int chunkX, int chunkZ) {
+        LongHashMap<Set<BaseSTBBlock>> index = chunkIndex.get(world.getUID());
+        Set<BaseSTBBlock> blocks = index == null ? null : index.get(chunkKey(chunkX, chunkZ));
+        return blocks == null ? Collections.<BaseSTBBlock>emptySet() : Collections.unmodifiableSet(blocks);
     }
 
     public void tick() {
         long now = System.nanoTime();
-        for (World w : Bukkit.getWorlds()) {
-            Set<BaseSTBBlock> tickerSet = allTickers.get(w.getUID());
-            if (tickerSet != null) {
-                Iterator<BaseSTBBlock> iter = tickerSet.iterator();
-                while (iter.hasNext()) {
-                    BaseSTBBlock stb = iter.next();
-                    if (stb.isPendingRemoval()) {
-                        Debugger.getInstance().debug("Removing block " + stb + " from tickers list");
-                        iter.remove();
-                    } else {
-                        PersistableLocation pLoc = stb.getPersistableLocation();
-                        int x = (int) pLoc.getX(), z = (int) pLoc.getZ();
-                        if (w.isChunkLoaded(x >> 4, z >> 4)) {
-                            stb.tick();
-                            if (stb.getTicksLived() % stb.getTickRate() == 0) {
-                                stb.onServerTick();
-                            }
-                        }
-                    }
-                }
-            }
-        }
         totalTicks++;
+        int nDeferred = tickerWheel.advance(totalTicks, tickBudget > 0 ? now + tickBudget : 0, tickVisitor);
+        if (nDeferred > 0) {
+            deferralTicks++;
+            deferredTickers += nDeferred;
+            Debugger.getInstance().debug(2, "tick budget exceeded: " + nDeferred + " blocks deferred");
+        }
         totalTime += System.nanoTime() - now;
+        if (journal != null && totalTicks % journalFlushInterval == 0 && !journalDirty.isEmpty()) {
+            flushJournal();
+        }
 //		System.out.println("tickers took " + (System.nanoTime() - now) + " ns");
-        if (System.currentTimeMillis() - lastSave > saveInterval) {
-            save();
+        if (statsLogInterval > 0 && System.currentTimeMillis() - lastStatsLog > statsLogInterval) {
+            LogUtils.info("STB storage: " + metrics.summary());
+            lastStatsLog = System.currentTimeMillis();
+        }
+        if (!saveCycle.isEmpty()) {
+            continueSaveCycle();
+        } else if (System.currentTimeMillis() - lastSave > saveInterval) {
+            if (saveBudget > 0) {
+                startSaveCycle();
+            } else {
+                save();
+            }
         }
     }
 
+    /**
+     * Immediately send all pending updates over to the DB updater thread,
+     * finishing off any incremental save cycle which is in progress.
+     */
     public void save() {
+        if (!saveCycle.isEmpty()) {
+            // the partial cycle is committed separately; pendingUpdates may
+            // have gained new records for the same locations in the meantime
+            while (!saveCycle.isEmpty()) {
+                enqueueRecord(pollSaveCycle());
+            }
+            queueRecord(UpdateRecord.commitRecord());
+        }
         // send any pending updates over to the DB updater thread via a BlockingQueue
-        if (!pendingUpdates.isEmpty()) {
-            // TODO: may want to do this over a few ticks to reduce the risk of lag spikes
-            for (UpdateRecord rec : pendingUpdates.values()) {
-                BaseSTBBlock stb = get(rec.getLocation());
-                if (stb == null && rec.getOp() != UpdateRecord.Operation.DELETE) {
-                    LogUtils.severe("STB block @ " + rec.getLocation() + " is null, but should not be!");
-                    continue;
-                }
-                if (stb != null) {
-                    rec.setType(stb.getItemTypeID());
-                    rec.setData(stb.freeze().saveToString());
+        int nPending = countPendingUpdates();
+        if (nPending > 0) {
+            long segment = rotateJournal();
+            metrics.saved(nPending);
+            for (LongHashMap<UpdateRecord> pending : pendingUpdates.values()) {
+                for (UpdateRecord rec : pending.values()) {
+                    enqueueRecord(rec);
                 }
-                updateQueue.add(rec);
             }
-            updateQueue.add(UpdateRecord.commitRecord());
+            queueRecord(UpdateRecord.commitRecord(segment));
             pendingUpdates.clear();
         }
         lastSave = System.currentTimeMillis();
     }
 
-    public void loadFromDatabase(World world, String wantedType) throws SQLException {
-        ResultSet rs;
-        if (wantedType == null) {
-            queryStmt.setString(1, world.getUID().toString());
-            rs = queryStmt.executeQuery();
+    /**
+     * Begin an incremental save: the current set of pending updates becomes
+     * the save cycle, which is then worked through over as many ticks as
+     * necessary, spending at most the configured save budget per tick.  Any
+     * blocks modified while the cycle is running are tracked in a fresh set
+     * of pending updates, to be picked up by the next save.
+     */
+    private void startSaveCycle() {
+        if (countPendingUpdates() == 0) {
+            lastSave = System.currentTimeMillis();
+            return;
+        }
+        journalSegment = rotateJournal();
+        for (Map.Entry<UUID, LongHashMap<UpdateRecord>> e : pendingUpdates.entrySet()) {
+            saveCycle.addAll(e.getValue().values());
+            if (lazyLoading) {
+                LongHashMap<List<UpdateRecord>> index = getWorldMap(saveCycleChunks, e.getKey());
+                for (UpdateRecord rec : e.getValue().values()) {
+                    long key = chunkKey(rec.getX() >> 4, rec.getZ() >> 4);
+                    List<UpdateRecord> recs = index.get(key);
+                    if (recs == null) {
+                        recs = new ArrayList<UpdateRecord>();
+                        index.put(key, recs);
+                    }
+                    recs.add(rec);
+                }
+            }
+        }
+        metrics.saved(saveCycle.size());
+        pendingUpdates.clear();
+        Debugger.getInstance().debug("starting incremental save of " + saveCycle.size() + " records");
+        continueSaveCycle();
+    }
+
+    private int countPendingUpdates() {
+        int n = 0;
+        for (LongHashMap<UpdateRecord> pending : pendingUpdates.values()) {
+            n += pending.size();
+        }
+        return n;
+    }
+
+    private UpdateRecord getPendingUpdate(UUID worldID, long key) {
+        LongHashMap<UpdateRecord> pending = pendingUpdates.get(worldID);
+        return pending == null ? null : pending.get(key);
+    }
+
+    private void continueSaveCycle() {
+        long deadline = System.nanoTime() + saveBudget;
+        int n = 0;
+        // always make some progress, however small the budget
+        do {
+            enqueueRecord(pollSaveCycle());
+            n++;
+        } while (!saveCycle.isEmpty() && System.nanoTime() < deadline);
+        Debugger.getInstance().debug(2, "incremental save: " + n + " records this tick, " + saveCycle.size() + " remaining");
+
+        if (saveCycle.isEmpty()) {
+            // only commit once the whole cycle has been handed over
+            queueRecord(UpdateRecord.commitRecord(journalSegment));
+            lastSave = System.currentTimeMillis();
+        }
+    }
+
+    private UpdateRecord pollSaveCycle() {
+        Iterator<UpdateRecord> iter = saveCycle.iterator();
+        UpdateRecord rec = iter.next();
+        iter.remove();
+        if (saveCycle.isEmpty()) {
+            saveCycleChunks.clear();
+        }
+        return rec;
+    }
+
+    /**
+     * Write the current state of all blocks changed since the last flush to
+     * the journal.  Each block's state is written in full, so a block which
+     * changes many times between flushes only costs one journal record.
+     * Only the snapshots are taken here; the records are encoded on the
+     * serializer threads and written by the journal writer thread.
+     */
+    private void flushJournal() {
+        long start = System.nanoTime();
+        List<UpdateRecord> recs = new ArrayList<UpdateRecord>();
+        for (LongHashMap<Location> dirty : journalDirty.values()) {
+            for (Location loc : dirty.values()) {
+                recs.add(makeJournalRecord(loc));
+            }
+        }
+        journalDirty.clear();
+        writeJournal(recs);
+        long elapsed = System.nanoTime() - start;
+        metrics.journalFlushed(elapsed);
+        Debugger.getInstance().debug(2, String.format("journal flush: %d blocks in %.2fms", recs.size(), elapsed / 1000000.0));
+    }
+
+    private UpdateRecord makeJournalRecord(Location loc) {
+        // use the index rather than get(), which would also find multi-block structures
+        BaseSTBBlock stb = getWorldIndex(loc.getWorld()).get(locationKey(loc));
+        if (stb == null) {
+            return new UpdateRecord(UpdateRecord.Operation.DELETE, loc);
         } else {
-            queryTypeStmt.setString(1, world.getUID().toString());
-            queryTypeStmt.setString(2, wantedType);
-            rs = queryTypeStmt.executeQuery();
+            UpdateRecord rec = new UpdateRecord(UpdateRecord.Operation.UPDATE, loc);
+            freezeBlock(rec, stb);
+            return rec;
         }
-        while (rs.next()) {
-            String type = rs.getString(5);
-            if (deferredBlocks.contains(type) && !type.equals(wantedType)) {
-                continue;
+    }
+
+    /**
+     * Hand some journal records over to the journal writer thread, which
+     * appends them (once their data is ready) and then flushes the journal.
+     *
+     * @param recs the records to write, in order
+     */
+    private void writeJournal(final List<UpdateRecord> recs) {
+        journalWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (UpdateRecord rec : recs) {
+                        if (rec.getOp() == UpdateRecord.Operation.DELETE) {
+                            journal.appendDelete(rec);
+                        } else if (rec.getData() != null) {
+                            journal.appendUpsert(rec);
+                        }
+                    }
+                    journal.flush();
+                } catch (IOException e) {
+                    LogUtils.severe("can't write to STB block journal: " + e.getMessage());
+                }
             }
-            int x = rs.getInt(2);
-            int y = rs.getInt(3);
-            int z = rs.getInt(4);
-            String data = rs.getString(6);
-            try {
-                YamlConfiguration conf = new YamlConfiguration();
-                conf.loadFromString(data);
-                BaseSTBItem stbItem = SensibleToolbox.getItemRegistry().getItemById(type, conf);
-                if (stbItem != null) {
-                    Location loc = new Location(world, x, y, z);
-                    if (stbItem instanceof BaseSTBBlock) {
-                        registerLocation(loc, (BaseSTBBlock) stbItem, false);
-                    } else {
-                        LogUtils.severe("STB item " + type + " @ " + loc + " is not a block!");
+        });
+    }
+
+    /**
+     * Start a new journal segment, because a save is starting.  Everything in
+     * the journal so far is covered by the save.  The rotation is done by the
+     * journal writer thread, after any records it hasn't yet written.
+     *
+     * @return the segment to release once the save is committed, or 0 if there is no journal
+     */
+    private long rotateJournal() {
+        if (journal == null) {
+            return 0;
+        }
+        journalDirty.clear();
+        long closed = journalSegmentId++;
+        journalWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    journal.rotate();
+                } catch (IOException e) {
+                    LogUtils.severe("can't rotate STB block journal: " + e.getMessage());
+                }
+            }
+        });
+        return closed;
+    }
+
+    /**
+     * Called by the DB writer thread when a save has been committed.
+     *
+     * @param segment the journal segment which was closed when the save started
+     */
+    void journalCommitted(long segment) {
+        if (journal != null) {
+            journal.release(segment);
+        }
+    }
+
+    /**
+     * Freeze the block for the given record, if it's not a deletion, and
+     * pass the record on to the DB writer thread.
+     *
+     * @param rec the update record
+     * @return true if the record was queued; false if its block has gone
+     */
+    private boolean enqueueRecord(UpdateRecord rec) {
+        BaseSTBBlock stb = get(rec.getLocation());
+        if (stb == null && rec.getOp() != UpdateRecord.Operation.DELETE) {
+            UpdateRecord newer = getPendingUpdate(rec.getWorldID(), rec.getPackedPosition());
+            if (newer != null && newer.getOp() == UpdateRecord.Operation.DELETE) {
+                // block was removed while an incremental save was in progress;
+                // the pending delete will take care of it in the next save
+                Debugger.getInstance().debug("skipping save of removed block @ " + rec.getLocation());
+            } else {
+                LogUtils.severe("STB block @ " + rec.getLocation() + " is null, but should not be!");
+            }
+            return false;
+        }
+        if (stb != null) {
+            freezeBlock(rec, stb);
+        }
+        queueRecord(rec);
+        return true;
+    }
+
+    /**
+     * Fill in an update record's type and data from the given block.  If
+     * the block supports snapshots, only the snapshot is taken here, and
+     * the data is encoded on a serializer thread; anything using the record
+     * will wait for that to complete.
+     *
+     * @param rec the update record
+     * @param stb the block
+     */
+    private void freezeBlock(final UpdateRecord rec, BaseSTBBlock stb) {
+        long start = System.nanoTime();
+        rec.setType(stb.getItemTypeID());
+        final BlockSnapshot snapshot = serializer == null ? null : stb.takeSnapshot();
+        if (snapshot != null) {
+            rec.setPendingData(serializer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    storeBlockData(rec, snapshot.toConfiguration());
+                }
+            }));
+        } else {
+            storeBlockData(rec, stb.freeze());
+        }
+        metrics.frozen(rec.getType(), System.nanoTime() - start);
+    }
+
+    private void queueRecord(UpdateRecord rec) {
+        if (!rec.getOp().hasData()) {
+            commitWindow.clear();
+        } else if (!commitWindow.add(rec.getWorldID(), rec.getPackedPosition())) {
+            // the location already has an uncommitted record, which the store might apply after this one.
+            // Within a save cycle, this only happens when a chunk is unloaded (see chunkUnloaded())
+            queueRecord(UpdateRecord.commitRecord());
+            commitWindow.add(rec.getWorldID(), rec.getPackedPosition());
+        }
+        updateQueue.add(rec);
+        metrics.queueChanged(updateQueue.size());
+    }
+
+    private void storeBlockData(UpdateRecord rec, YamlConfiguration conf) {
+        if (binaryFormat) {
+            // the text column is NOT NULL; an empty string there means "see bdata".  No YAML fallback
+            // is written, so versions which don't know about bdata can't read these rows
+            rec.setBinaryData(BlockStateCodec.encode(conf));
+            rec.setData("");
+        } else {
+            rec.setData(conf.saveToString());
+        }
+    }
+
+    public void loadFromDatabase(World world) throws IOException {
+        if (lazyLoading) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                chunkLoaded(chunk);
+            }
+            return;
+        }
+        RowCollector rows = new RowCollector(world);
+        blockStore.loadWorld(world.getUID(), rows);
+        LoadStats stats = loadBlocks(world, rows);
+        Debugger.getInstance().debug(String.format("loaded STB data for %s: %d binary rows (%d bytes), %d YAML rows (%d chars)",
+                world.getName(), stats.nBinary, stats.binaryBytes, stats.nText, stats.textBytes));
+        LogUtils.info(String.format("Loaded %d STB blocks for %s: query %.2fms, parse %.2fms (%.2fms waited), construct %.2fms, register %.2fms",
+                stats.nBinary + stats.nText, world.getName(), stats.queryTime / 1000000.0, stats.parseTime / 1000000.0,
+                stats.parseWaitTime / 1000000.0, stats.constructTime / 1000000.0, stats.registerTime / 1000000.0));
+    }
+
+    /**
+     * Collects the rows read from the block store, handing each one off for
+     * parsing as soon as it's read, if there's a loader thread pool.  Rows
+     * for block types which aren't registered are set aside, unparsed, until
+     * their type is registered.
+     */
+    private class RowCollector implements BlockStore.RowHandler {
+        private final World world;
+        private final long start = System.nanoTime();
+        private final List<StoredBlock> rows = new ArrayList<StoredBlock>();
+        private final List<Future<YamlConfiguration>> parsed = new ArrayList<Future<YamlConfiguration>>();
+
+        private RowCollector(World world) {
+            this.world = world;
+        }
+
+        @Override
+        public void handle(StoredBlock row) {
+            if (lazyLoading && !isChunkLoaded(world.getUID(), row.x >> 4, row.z >> 4)) {
+                // will be loaded along with its chunk
+                return;
+            }
+            if (!SensibleToolbox.getItemRegistry().getItemIds().contains(row.type)) {
+                deferRow(world.getUID(), row);
+                return;
+            }
+            rows.add(row);
+            parsed.add(loaderPool == null ? null : loaderPool.submit(row));
+        }
+    }
+
+    private LoadStats loadBlocks(World world, RowCollector collector) {
+        LoadStats stats = new LoadStats();
+        stats.queryTime = System.nanoTime() - collector.start;
+
+        List<StoredBlock> rows = collector.rows;
+        List<BaseSTBBlock> batch = new ArrayList<BaseSTBBlock>(LOAD_BATCH_SIZE);
+        List<StoredBlock> batchRows = new ArrayList<StoredBlock>(LOAD_BATCH_SIZE);
+        for (int i = 0; i < rows.size(); i++) {
+            StoredBlock row = rows.get(i);
+            BaseSTBBlock stb = constructBlock(world, row, collector.parsed.get(i), stats);
+            if (stb != null) {
+                batch.add(stb);
+                batchRows.add(row);
+            }
+            if (batch.size() >= LOAD_BATCH_SIZE || i == rows.size() - 1) {
+                long start = System.nanoTime();
+                for (int j = 0; j < batch.size(); j++) {
+                    StoredBlock r = batchRows.get(j);
+                    registerLocation(new Location(world, r.x, r.y, r.z), batch.get(j), false);
+                    getPersistedHashes(world.getUID()).put(UpdateRecord.packPosition(r.x, r.y, r.z), r.getPayloadHash());
+                }
+                stats.registerTime += System.nanoTime() - start;
+                batch.clear();
+                batchRows.clear();
+            }
+        }
+        return stats;
+    }
+
+    private BaseSTBBlock constructBlock(World world, StoredBlock row, Future<YamlConfiguration> parsed, LoadStats stats) {
+        try {
+            long start = System.nanoTime();
+            YamlConfiguration conf = parsed == null ? row.call() : parsed.get();
+            stats.parseWaitTime += System.nanoTime() - start;
+            stats.parseTime += row.getParseTime();
+            if (row.isBinary()) {
+                stats.nBinary++;
+                stats.binaryBytes += row.getPayloadSize();
+            } else {
+                stats.nText++;
+                stats.textBytes += row.getPayloadSize();
+            }
+
+            start = System.nanoTime();
+            BaseSTBItem stbItem = SensibleToolbox.getItemRegistry().getItemById(row.type, conf);
+            stats.constructTime += System.nanoTime() - start;
+            if (stbItem == null) {
+                deferRow(world.getUID(), row);
+            } else if (!(stbItem instanceof BaseSTBBlock)) {
+                LogUtils.severe(String.format("STB item %s @ %s,%d,%d,%d is not a block!", row.type, world.getName(), row.x, row.y, row.z));
+            } else {
+                return (BaseSTBBlock) stbItem;
+            }
+        } catch (Exception e) {
+            Throwable t = e instanceof ExecutionException ? e.getCause() : e;
+            t.printStackTrace();
+            LogUtils.severe(String.format("Can't load STB block at %s,%d,%d,%d: %s", world.getName(), row.x, row.y, row.z, t.getMessage()));
+        }
+        return null;
+    }
+
+    private static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private boolean isChunkLoaded(UUID worldID, int chunkX, int chunkZ) {
+        Set<Long> chunks = loadedChunks.get(worldID);
+        return chunks != null && chunks.contains(chunkKey(chunkX, chunkZ));
+    }
+
+    /**
+     * Check if blocks are only loaded from the database as their chunks are
+     * loaded (and unloaded with their chunks).
+     *
+     * @return true if lazy chunk loading is in effect
+     */
+    public boolean isLazyLoading() {
+        return lazyLoading;
+    }
+
+    /**
+     * The given chunk has just been loaded.  In lazy loading mode, load all
+     * the STB blocks in the chunk from the database; otherwise, put the
+     * chunk's parked tickers back on the timing wheel.
+     *
+     * @param chunk the chunk that has been loaded
+     */
+    public void chunkLoaded(Chunk chunk) {
+        if (!lazyLoading) {
+            setTickersParked(chunk.getWorld(), chunk.getX(), chunk.getZ(), false);
+            return;
+        }
+        UUID worldID = chunk.getWorld().getUID();
+        Set<Long> chunks = loadedChunks.get(worldID);
+        if (chunks == null) {
+            chunks = new HashSet<Long>();
+            loadedChunks.put(worldID, chunks);
+        }
+        if (!chunks.add(chunkKey(chunk.getX(), chunk.getZ()))) {
+            return;  // already loaded
+        }
+        try {
+            // this must be looked at before the rows are read, or a commit in between could be missed
+            final LongHashMap<UpdateRecord> unsaved = getUnloadedWrites(worldID, chunk.getX(), chunk.getZ());
+            final RowCollector rows = new RowCollector(chunk.getWorld());
+            blockStore.loadChunk(worldID, chunk.getX(), chunk.getZ(), unsaved.isEmpty() ? rows : new BlockStore.RowHandler() {
+                @Override
+                public void handle(StoredBlock row) throws IOException {
+                    if (!unsaved.containsKey(UpdateRecord.packPosition(row.x, row.y, row.z))) {
+                        rows.handle(row);
                     }
-                } else {
-                    // defer it - should hopefully be registered by another plugin later
-                    Debugger.getInstance().debug("deferring load for unrecognised block type '" + type + "'");
-                    deferBlockLoad(type);
                 }
+            });
+            for (UpdateRecord rec : unsaved.values()) {
+                // the row may be stale, or not there at all; a deleted block's row is just ignored
+                if (rec.getOp() != UpdateRecord.Operation.DELETE && rec.getData() != null) {
+                    rows.handle(new StoredBlock(rec.getType(), rec.getX(), rec.getY(), rec.getZ(), rec.getData(), rec.getBinaryData()));
+                }
+            }
+            LoadStats stats = loadBlocks(chunk.getWorld(), rows);
+            if (!unsaved.isEmpty()) {
+                // these blocks aren't necessarily in the store yet, so mustn't be taken as persisted
+                Map<Long, Long> hashes = getPersistedHashes(worldID);
+                for (UpdateRecord rec : unsaved.values()) {
+                    hashes.remove(rec.getPackedPosition());
+                }
+            }
+            if (stats.nBinary + stats.nText > 0) {
+                Debugger.getInstance().debug(2, String.format("loaded %d STB blocks for chunk %s,%d,%d in %.2fms",
+                        stats.nBinary + stats.nText, chunk.getWorld().getName(), chunk.getX(), chunk.getZ(), stats.parseTime / 1000000.0));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            LogUtils.severe("can't load STB data for chunk " + chunk + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The given chunk is being unloaded.  In lazy loading mode, persist any
+     * pending changes for the STB blocks in the chunk, including blocks
+     * which have been removed, then evict them from memory; they'll be
+     * reloaded from the database when the chunk is next loaded.  Otherwise,
+     * park the chunk's tickers until it's loaded again.
+     *
+     * @param chunk the chunk that is being unloaded
+     */
+    public void chunkUnloaded(Chunk chunk) {
+        if (!lazyLoading) {
+            setTickersParked(chunk.getWorld(), chunk.getX(), chunk.getZ(), true);
+            return;
+        }
+        UUID worldID = chunk.getWorld().getUID();
+        Set<Long> chunks = loadedChunks.get(worldID);
+        if (chunks == null || !chunks.remove(chunkKey(chunk.getX(), chunk.getZ()))) {
+            return;
+        }
+        // the blocks must be frozen now, while they're still registered; records from an incremental
+        // save in progress would otherwise find no block later
+        List<UpdateRecord> cycleRecs = takeSaveCycleRecords(worldID, chunk.getX(), chunk.getZ());
+        List<UpdateRecord> pendingRecs = takePendingUpdates(worldID, chunk.getX(), chunk.getZ());
+        boolean cycleEnded = !cycleRecs.isEmpty() && saveCycle.isEmpty();
+        for (UpdateRecord rec : cycleRecs) {
+            writeUnloadedRecord(rec);
+        }
+        // a pending record for a location which the save cycle has already queued gets a COMMIT
+        // queued before it (see queueRecord()), so a block broken mid-cycle can't come back
+        for (UpdateRecord rec : pendingRecs) {
+            writeUnloadedRecord(rec);
+        }
+        if (journal != null) {
+            LongHashMap<Location> dirty = getWorldMap(journalDirty, worldID);
+            // an older journal record for a block must not be replayed over what's being saved now
+            for (UpdateRecord rec : cycleRecs) {
+                dirty.put(rec.getPackedPosition(), rec.getLocation());
+            }
+            for (UpdateRecord rec : pendingRecs) {
+                dirty.put(rec.getPackedPosition(), rec.getLocation());
+            }
+            List<Location> toJournal = new ArrayList<Location>();
+            for (Location loc : dirty.values()) {
+                if (loc.getBlockX() >> 4 == chunk.getX() && loc.getBlockZ() >> 4 == chunk.getZ()) {
+                    toJournal.add(loc);
+                }
+            }
+            List<UpdateRecord> recs = new ArrayList<UpdateRecord>(toJournal.size());
+            for (Location loc : toJournal) {
+                recs.add(makeJournalRecord(loc));
+                dirty.remove(locationKey(loc));
+            }
+            if (!recs.isEmpty()) {
+                writeJournal(recs);
+            }
+        }
+        for (BaseSTBBlock stb : get(chunk)) {
+            Location loc = stb.getLocation();
+            evict(stb, loc, locationKey(loc));
+        }
+        if (!cycleRecs.isEmpty() || !pendingRecs.isEmpty()) {
+            // If a save cycle is still running, this commits the part of it queued so far, which is a
+            // deliberate exception to committing a cycle only once it's all been handed over: the
+            // evicted blocks' records shouldn't wait for the rest of the cycle.  It's safe with a
+            // journal, since this commit doesn't release the cycle's journal segment; only the cycle's
+            // final commit does that, so after a crash before then the journal is still replayed over
+            // the partly-saved cycle.  Without a journal, the DB is left holding part of the cycle.
+            queueRecord(cycleEnded ? UpdateRecord.commitRecord(journalSegment) : UpdateRecord.commitRecord());
+            if (cycleEnded) {
+                lastSave = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private List<UpdateRecord> takeSaveCycleRecords(UUID worldID, int chunkX, int chunkZ) {
+        LongHashMap<List<UpdateRecord>> index = saveCycleChunks.get(worldID);
+        List<UpdateRecord> recs = index == null ? null : index.remove(chunkKey(chunkX, chunkZ));
+        if (recs == null) {
+            return Collections.emptyList();
+        }
+        List<UpdateRecord> res = new ArrayList<UpdateRecord>(recs.size());
+        for (UpdateRecord rec : recs) {
+            // the index isn't updated as records are saved
+            if (saveCycle.remove(rec)) {
+                res.add(rec);
+            }
+        }
+        if (saveCycle.isEmpty()) {
+            saveCycleChunks.clear();
+        }
+        return res;
+    }
+
+    private List<UpdateRecord> takePendingUpdates(UUID worldID, int chunkX, int chunkZ) {
+        LongHashMap<UpdateRecord> pending = pendingUpdates.get(worldID);
+        if (pending == null || pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<UpdateRecord> res = new ArrayList<UpdateRecord>();
+        for (UpdateRecord rec : pending.values()) {
+            if (rec.getX() >> 4 == chunkX && rec.getZ() >> 4 == chunkZ) {
+                res.add(rec);
+            }
+        }
+        for (UpdateRecord rec : res) {
+            pending.remove(rec.getPackedPosition());
+        }
+        return res;
+    }
+
+    /**
+     * Pass a record for a chunk which is being unloaded to the DB writer
+     * thread, and hold on to it until it's committed, so that it can be
+     * used in place of the stored row if the chunk is loaded again first.
+     */
+    private void writeUnloadedRecord(UpdateRecord rec) {
+        if (enqueueRecord(rec)) {
+            synchronized (unloadedWrites) {
+                getWorldMap(unloadedWrites, rec.getWorldID()).put(rec.getPackedPosition(), rec);
+            }
+        }
+    }
+
+    private LongHashMap<UpdateRecord> getUnloadedWrites(UUID worldID, int chunkX, int chunkZ) {
+        LongHashMap<UpdateRecord> res = new LongHashMap<UpdateRecord>();
+        synchronized (unloadedWrites) {
+            LongHashMap<UpdateRecord> map = unloadedWrites.get(worldID);
+            if (map != null) {
+                for (UpdateRecord rec : map.values()) {
+                    if (rec.getX() >> 4 == chunkX && rec.getZ() >> 4 == chunkZ) {
+                        res.put(rec.getPackedPosition(), rec);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    private void evict(BaseSTBBlock stb, Location loc, long key) {
+        stb.unloadBlock(blockAccess, loc);
+        getWorldIndex(loc.getWorld()).remove(key);
+        removeFromChunkIndex(stb, loc);
+        removeAuxiliaryBlocks(stb, loc);
+        removeTicker(stb, loc.getWorld().getUID());
+        Map<Long, Long> hashes = persistedHashes.get(loc.getWorld().getUID());
+        if (hashes != null) {
+            hashes.remove(key);
+        }
+        Debugger.getInstance().debug(2, "Evicted " + stb + " @ " + loc);
+    }
+
+    /**
+     * Runs each ticking block (which will be in a loaded chunk, since the
+     * tickers in unloaded chunks are parked) as it becomes due, and works out when it's
+     * next due: the next tick on which its ticks lived will be a multiple
+     * of its tick rate.  Blocks which report that they have no work to do
+     * are put to sleep instead.
+     */
+    private class TickVisitor implements TickerWheel.Visitor {
+        @Override
+        public long due(TickerWheel.Entry entry, long now) {
+            BaseSTBBlock stb = entry.getBlock();
+            if (stb.isPendingRemoval()) {
+                Debugger.getInstance().debug("Removing block " + stb + " from tickers list");
+                removeTicker(stb, entry.getWorldID());
+                return -1;
+            }
+            long lateness = now - entry.getDue();
+            if (lateness > 0) {
+                // deferred: hold the block's ticks lived back, so it's still a multiple of the tick rate
+                stb.startTicking(blockAccess, totalTicks - stb.getTicksLived() + lateness);
+                lateBlocks++;
+                totalLateness += lateness;
+                maxLateness = Math.max(maxLateness, lateness);
+            }
+            long start = tickProfiler == null ? 0 : System.nanoTime();
+            try {
+                stb.onServerTick();
             } catch (Exception e) {
+                LogUtils.severe("exception while ticking " + stb + ": " + e.getMessage());
                 e.printStackTrace();
-                LogUtils.severe(String.format("Can't load STB block at %s,%d,%d,%d: %s", world.getName(), x, y, z, e.getMessage()));
             }
+            if (tickProfiler != null) {
+                tickProfiler.record(entry.getWorldID(), stb.getItemTypeID(), System.nanoTime() - start);
+            }
+            if (stb.canSleep() && !stb.isPendingRemoval()) {
+                // nothing to do until something wakes the block up
+                entry.sleep();
+                stb.setAsleep(blockAccess, true);
+                Debugger.getInstance().debug(2, "Ticking block " + stb + " is going to sleep");
+                return -1;
+            }
+            // the tick rate may have changed
+            int rate = Math.max(1, stb.getTickRate());
+            return now + rate - stb.getTicksLived() % rate;
         }
+
+        @Override
+        public boolean canDefer(TickerWheel.Entry entry) {
+            // deferring a block shifts its phase
+            return !entry.getBlock().hasFixedTickPhase();
+        }
+    }
+
+    private static class LoadStats {
+        private int nBinary, nText;
+        private long binaryBytes, textBytes;
+        private long queryTime, parseTime, parseWaitTime, constructTime, registerTime;
     }
 
-    public void load() throws SQLException {
-        for (World w : Bukkit.getWorlds()) {
-            loadFromDatabase(w, null);
+    public void load() throws IOException {
+        int nThreads = SensibleToolboxPlugin.getInstance().getConfig().getInt("database.loader_threads", 2);
+        if (nThreads > 0) {
+            loaderPool = Executors.newFixedThreadPool(nThreads, new StorageThreadFactory("STB block loader"));
+        }
+        try {
+            for (World w : Bukkit.getWorlds()) {
+                loadFromDatabase(w);
+            }
+        } finally {
+            if (loaderPool != null) {
+                loaderPool.shutdown();
+                loaderPool = null;
+            }
+        }
+    }
+
+    /**
+     * Set aside a stored block whose type isn't registered; it should
+     * hopefully be registered by another plugin later.  Once startup is over,
+     * only the type is noted; its rows are read from the DB again if it
+     * does get registered.
+     */
+    private void deferRow(UUID worldID, StoredBlock row) {
+        if (startupDone) {
+            if (unbufferedTypes.add(row.type)) {
+                Debugger.getInstance().debug("ignoring rows for unrecognised block type '" + row.type + "'");
+            }
+            return;
+        }
+        Map<UUID, LongHashMap<StoredBlock>> byWorld = deferredRows.get(row.type);
+        if (byWorld == null) {
+            Debugger.getInstance().debug("deferring load for unrecognised block type '" + row.type + "'");
+            byWorld = new HashMap<UUID, LongHashMap<StoredBlock>>();
+            deferredRows.put(row.type, byWorld);
         }
+        // keyed by location, so rows seen again when a chunk is reloaded replace the old ones
+        getWorldMap(byWorld, worldID).put(UpdateRecord.packPosition(row.x, row.y, row.z), row);
     }
 
-    private void deferBlockLoad(String typeID) {
-        deferredBlocks.add(typeID);
+    /**
+     * Called once the server has finished starting up, and all plugins have
+     * had the chance to register their block types.  The rows set aside for
+     * types which still aren't registered are dropped from memory (they stay
+     * in the DB); if any of those types are registered later after all,
+     * their rows are read from the DB again.
+     */
+    public void dropDeferredRows() {
+        startupDone = true;
+        for (Map.Entry<String, Map<UUID, LongHashMap<StoredBlock>>> entry : deferredRows.entrySet()) {
+            int n = 0;
+            for (LongHashMap<StoredBlock> rows : entry.getValue().values()) {
+                n += rows.size();
+            }
+            LogUtils.warning(String.format("Block type '%s' is not registered: %d stored block(s) of that type not loaded", entry.getKey(), n));
+            unbufferedTypes.add(entry.getKey());
+        }
+        deferredRows.clear();
     }
 
     /**
      * Load all blocks for the given block type.  Called when a block is registered after the
-     * initial DB load is done.
+     * initial DB load is done.  During startup, the blocks' rows were set aside as the DB was
+     * read, so no further DB access is needed; after that, they're read from the DB again.
      *
      * @param type the block type
-     * @throws SQLException if there is a problem loading from the DB
      */
-    public void loadDeferredBlocks(String type) throws SQLException {
-        if (deferredBlocks.contains(type)) {
+    public void loadDeferredBlocks(String type) {
+        if (unbufferedTypes.remove(type)) {
             for (World world : Bukkit.getWorlds()) {
-                loadFromDatabase(world, type);
+                final RowCollector rows = new RowCollector(world);
+                try {
+                    blockStore.loadType(world.getUID(), type, new BlockStore.RowHandler() {
+                        @Override
+                        public void handle(StoredBlock row) {
+                            addDeferredRow(rows, row);
+                        }
+                    });
+                } catch (IOException e) {
+                    LogUtils.severe("There was a problem restoring blocks of type '" + type + "' from persisted storage:");
+                    e.printStackTrace();
+                    continue;
+                }
+                logDeferredLoad(world, type, loadBlocks(world, rows));
             }
-            deferredBlocks.remove(type);
+            return;
         }
+        Map<UUID, LongHashMap<StoredBlock>> byWorld = deferredRows.remove(type);
+        if (byWorld == null) {
+            return;
+        }
+        for (World world : Bukkit.getWorlds()) {
+            LongHashMap<StoredBlock> deferred = byWorld.get(world.getUID());
+            if (deferred == null) {
+                continue;
+            }
+            RowCollector rows = new RowCollector(world);
+            for (StoredBlock row : deferred.values()) {
+                addDeferredRow(rows, row);
+            }
+            logDeferredLoad(world, type, loadBlocks(world, rows));
+        }
+    }
+
+    private void addDeferredRow(RowCollector rows, StoredBlock row) {
+        // something else may have been placed there since the row was stored
+        if (!getWorldIndex(rows.world).containsKey(UpdateRecord.packPosition(row.x, row.y, row.z))) {
+            rows.handle(row);
+        }
+    }
+
+    private void logDeferredLoad(World world, String type, LoadStats stats) {
+        LogUtils.info(String.format("Loaded %d deferred STB blocks of type %s for %s", stats.nBinary + stats.nText, type, world.getName()));
     }
 
     /**
@@ -414,10 +1486,24 @@ public class LocationManager {
     public void worldUnloaded(World world) {
         save();
 
-        Map<String, BaseSTBBlock> map = blockIndex.get(world.getUID());
+        LongHashMap<BaseSTBBlock> map = blockIndex.remove(world.getUID());
         if (map != null) {
             map.clear();
-            blockIndex.remove(world.getUID());
+        }
+        multiBlockIndex.remove(world.getUID());
+        chunkIndex.remove(world.getUID());
+        Map<BaseSTBBlock, TickerWheel.Entry> tickers = allTickers.remove(world.getUID());
+        if (tickers != null) {
+            for (TickerWheel.Entry entry : tickers.values()) {
+                entry.cancel();
+            }
+        }
+        journalDirty.remove(world.getUID());
+        persistedHashes.remove(world.getUID());
+        loadedChunks.remove(world.getUID());
+        for (Map<UUID, LongHashMap<StoredBlock>> byWorld : deferredRows.values()) {
+            // read again if the world is reloaded
+            byWorld.remove(world.getUID());
         }
     }
 
@@ -427,10 +1513,10 @@ public class LocationManager {
      * @param world the world that has been loaded
      */
     public void worldLoaded(World world) {
-        if (!blockIndex.containsKey(world.getUID())) {
+        if (lazyLoading || !blockIndex.containsKey(world.getUID())) {
             try {
-                loadFromDatabase(world, null);
-            } catch (SQLException e) {
+                loadFromDatabase(world);
+            } catch (IOException e) {
                 e.printStackTrace();
                 LogUtils.severe("can't load STB data for world " + world.getName() + ": " + e.getMessage());
             }
@@ -468,28 +1554,163 @@ public class LocationManager {
         this.saveInterval = saveInterval * 1000;
     }
 
+    /**
+     * Set the per-tick time budget for incremental saves.  If non-zero, the
+     * work of freezing modified blocks is spread over as many server ticks
+     * as needed, spending no more than this long on it in any one tick.
+     *
+     * @param saveBudget the save budget, in nanoseconds; 0 to save all blocks in one tick
+     */
+    public void setSaveBudget(long saveBudget) {
+        this.saveBudget = saveBudget;
+    }
+
     /**
      * Shut down the location manager after ensuring all pending changes are written to the DB,
      * and the DB thread has exited.  This may block the main thread for a short time, but should only
      * be called when the plugin is being disabled.
      */
     public void shutdown() {
-        updateQueue.add(UpdateRecord.finishingRecord());
+        queueRecord(UpdateRecord.finishingRecord());
         try {
             // 5 seconds is hopefully enough for the DB thread to finish its work
             updaterTask.join(5000);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        if (serializer != null) {
+            serializer.shutdown();
+        }
+        if (journal != null) {
+            journalWriter.shutdown();
+            try {
+                journalWriter.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         try {
-            dbStorage.getConnection().close();
-        } catch (SQLException e) {
+            blockStore.close();
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Get the storage pipeline metrics.
+     *
+     * @return the storage metrics
+     */
+    public StorageMetrics getMetrics() {
+        return metrics;
+    }
+
     UpdateRecord getUpdateRecord() throws InterruptedException {
-        return updateQueue.take();
+        UpdateRecord rec = updateQueue.take();
+        metrics.queueChanged(updateQueue.size());
+        return rec;
+    }
+
+    private Map<Long, Long> getPersistedHashes(UUID worldID) {
+        Map<Long, Long> map = persistedHashes.get(worldID);
+        if (map == null) {
+            Map<Long, Long> newMap = new ConcurrentHashMap<Long, Long>();
+            map = persistedHashes.putIfAbsent(worldID, newMap);
+            if (map == null) {
+                map = newMap;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Check if the given UPDATE record would write exactly what is already
+     * in the database, and can therefore be dropped.  Called from the DB
+     * writer thread.
+     *
+     * @param rec the update record
+     * @param hash the record's payload hash
+     * @return true if the write is redundant
+     */
+    boolean isUnchanged(UpdateRecord rec, long hash) {
+        Map<Long, Long> map = persistedHashes.get(rec.getWorldID());
+        Long existing = map == null ? null : map.get(rec.getPackedPosition());
+        if (existing != null && existing == hash) {
+            suppressedWrites.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Note that the given record has been successfully written to the
+     * database.  Called from the DB writer thread.
+     *
+     * @param rec the update record
+     * @param hash the record's payload hash (ignored for deletions)
+     */
+    void recordPersisted(UpdateRecord rec, long hash) {
+        if (rec.getOp() == UpdateRecord.Operation.DELETE) {
+            Map<Long, Long> map = persistedHashes.get(rec.getWorldID());
+            if (map != null) {
+                map.remove(rec.getPackedPosition());
+            }
+        } else {
+            getPersistedHashes(rec.getWorldID()).put(rec.getPackedPosition(), hash);
+        }
+        writeFinished(rec);
+    }
+
+    /**
+     * Note that the DB writer is done with the given record: either it's
+     * been committed, or it was dropped because there was nothing to write.
+     * Called from the DB writer thread.  If a commit fails, its records are
+     * kept, and go on being used in place of the stored rows.
+     *
+     * @param rec the update record
+     */
+    void writeFinished(UpdateRecord rec) {
+        if (!lazyLoading) {
+            return;
+        }
+        synchronized (unloadedWrites) {
+            LongHashMap<UpdateRecord> map = unloadedWrites.get(rec.getWorldID());
+            // a newer record may have been written for the location since
+            if (map != null && map.get(rec.getPackedPosition()) == rec) {
+                map.remove(rec.getPackedPosition());
+            }
+        }
+    }
+
+    /**
+     * Get the number of block updates which were not written to the
+     * database because the block's persisted state had not changed.
+     *
+     * @return the number of suppressed writes since the plugin started
+     */
+    public long getSuppressedWriteCount() {
+        return suppressedWrites.get();
+    }
+
+    private static class StorageThreadFactory implements ThreadFactory {
+        private final String name;
+        private int n = 0;
+
+        private StorageThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " #" + ++n);
+            t.setDaemon(true);
+            return t;
+        }
     }
 
     public static class BlockAccess {
@@ -0,0 +1,365 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import com.google.common.io.CountingInputStream;
+import me.desht.dhutils.Debugger;
+import me.desht.dhutils.LogUtils;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A block store which appends every change to a log file, and keeps the
+ * current state of all blocks in memory.  The log is replayed when the
+ * store is opened; changes which were not followed by a commit marker are
+ * ignored.  When the log grows to several times the size of the live data,
+ * it's compacted by writing the live data to a new file and renaming that
+ * over the old log.
+ */
+public class LogBlockStore implements BlockStore {
+    private static final int MAGIC = 0x5354424c;  // "STBL"
+    private static final byte VERSION = 1;
+    private static final byte OP_UPSERT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_COMMIT = 3;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File logFile;
+    private final double compactionRatio;
+    // all committed blocks, by world and packed position
+    private final Map<UUID, Map<Long, LogEntry>> index = new HashMap<UUID, Map<Long, LogEntry>>();
+    // changes written to the log since the last commit
+    private final List<LogEntry> uncommitted = new ArrayList<LogEntry>();
+    private FileOutputStream logStream;
+    private DataOutputStream out;
+    private long logSize;
+    private long committedSize;  // log size up to and including the last commit marker
+    private long liveSize;
+
+    /**
+     * Open the log block store, replaying any existing log.
+     *
+     * @param logFile the log file
+     * @param compactionRatio compact the log when it is larger than the live
+     *                        data by this factor
+     * @throws IOException if the log can't be read or opened for writing
+     */
+    public LogBlockStore(File logFile, double compactionRatio) throws IOException {
+        this.logFile = logFile;
+        this.compactionRatio = Math.max(compactionRatio, 1.1);
+        long validSize = logFile.exists() ? replay() : 0;
+        if (validSize == 0) {
+            writeLog(logFile, Collections.<LogEntry>emptyList());
+            validSize = logFile.length();
+        } else if (validSize < logFile.length()) {
+            LogUtils.warning("Discarding " + (logFile.length() - validSize) + " bytes of uncommitted data from " + logFile);
+            RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+            try {
+                raf.setLength(validSize);
+            } finally {
+                raf.close();
+            }
+        }
+        logSize = committedSize = validSize;
+        openForAppend();
+    }
+
+    @Override
+    public synchronized void loadWorld(UUID worldID, RowHandler handler) throws IOException {
+        Map<Long, LogEntry> map = index.get(worldID);
+        if (map != null) {
+            for (LogEntry entry : new ArrayList<LogEntry>(map.values())) {
+                handler.handle(entry.toStoredBlock());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void loadType(UUID worldID, String type, RowHandler handler) throws IOException {
+        Map<Long, LogEntry> map = index.get(worldID);
+        if (map != null) {
+            for (LogEntry entry : new ArrayList<LogEntry>(map.values())) {
+                if (entry.type.equals(type)) {
+                    handler.handle(entry.toStoredBlock());
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void loadChunk(UUID worldID, int chunkX, int chunkZ, RowHandler handler) throws IOException {
+        Map<Long, LogEntry> map = index.get(worldID);
+        if (map != null) {
+            for (LogEntry entry : new ArrayList<LogEntry>(map.values())) {
+                if (entry.x >> 4 == chunkX && entry.z >> 4 == chunkZ) {
+                    handler.handle(entry.toStoredBlock());
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void upsert(UpdateRecord rec) throws IOException {
+        LogEntry entry = new LogEntry(OP_UPSERT, rec.getWorldID(), rec.getX(), rec.getY(), rec.getZ(),
+                rec.getType(), rec.getData(), rec.getBinaryData());
+        logSize += entry.write(out);
+        uncommitted.add(entry);
+    }
+
+    @Override
+    public synchronized void delete(UpdateRecord rec) throws IOException {
+        LogEntry entry = new LogEntry(OP_DELETE, rec.getWorldID(), rec.getX(), rec.getY(), rec.getZ(), null, null, null);
+        logSize += entry.write(out);
+        uncommitted.add(entry);
+    }
+
+    @Override
+    public synchronized void commit() throws IOException {
+        if (uncommitted.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int n = uncommitted.size();
+        try {
+            out.writeByte(OP_COMMIT);
+            out.flush();
+            logStream.getFD().sync();
+            logSize++;
+        } catch (IOException e) {
+            // the changes are already in the log, and a later commit marker would commit them too
+            rollback();
+            throw e;
+        }
+        committedSize = logSize;
+        for (LogEntry entry : uncommitted) {
+            apply(entry);
+        }
+        uncommitted.clear();
+        Debugger.getInstance().debug(String.format("block log commit: %d changes in %.2fms, log size %d, live size %d",
+                n, (System.nanoTime() - start) / 1000000.0, logSize, liveSize));
+
+        if (logSize > MIN_COMPACTION_SIZE && logSize > liveSize * compactionRatio) {
+            compact();
+        }
+    }
+
+    /**
+     * Discard all uncommitted changes, truncating the log back to the last
+     * commit marker.  If that can't be done, the log is left closed, so
+     * nothing more can be written to it.
+     */
+    private void rollback() {
+        uncommitted.clear();
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // the log is about to be truncated anyway
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+            try {
+                raf.setLength(committedSize);
+            } finally {
+                raf.close();
+            }
+            logSize = committedSize;
+            openForAppend();
+        } catch (IOException e) {
+            LogUtils.severe("can't roll back " + logFile + " after a failed commit: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void apply(LogEntry entry) {
+        Map<Long, LogEntry> map = index.get(entry.worldID);
+        if (map == null) {
+            map = new HashMap<Long, LogEntry>();
+            index.put(entry.worldID, map);
+        }
+        long key = UpdateRecord.packPosition(entry.x, entry.y, entry.z);
+        LogEntry old = entry.op == OP_DELETE ? map.remove(key) : map.put(key, entry);
+        if (old != null) {
+            liveSize -= old.size;
+        }
+        if (entry.op == OP_UPSERT) {
+            liveSize += entry.size;
+        }
+    }
+
+    /**
+     * Replay the log file into the in-memory index.
+     *
+     * @return the size of the valid part of the log, up to the last commit
+     *         marker; 0 if the log has no valid header
+     * @throws IOException if the log can't be read
+     */
+    private long replay() throws IOException {
+        long start = System.nanoTime();
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        DataInputStream in = new DataInputStream(counter);
+        long validSize = 0;
+        int nCommits = 0;
+        List<LogEntry> pending = new ArrayList<LogEntry>();
+        try {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IOException(logFile + " is not an STB block log");
+            }
+            validSize = counter.getCount();
+            while (true) {
+                byte op = in.readByte();
+                if (op == OP_COMMIT) {
+                    for (LogEntry entry : pending) {
+                        apply(entry);
+                    }
+                    pending.clear();
+                    validSize = counter.getCount();
+                    nCommits++;
+                } else if (op == OP_UPSERT || op == OP_DELETE) {
+                    pending.add(LogEntry.read(op, in));
+                } else {
+                    LogUtils.warning("Corrupt data in " + logFile + " at offset " + (counter.getCount() - 1));
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // end of log, possibly part-way through an uncommitted change
+        } finally {
+            in.close();
+        }
+        Debugger.getInstance().debug(String.format("replayed %d commits from %s in %.2fms: log size %d, live size %d",
+                nCommits, logFile, (System.nanoTime() - start) / 1000000.0, validSize, liveSize));
+        return validSize;
+    }
+
+    private void compact() throws IOException {
+        long start = System.nanoTime();
+        long oldSize = logSize;
+        List<LogEntry> live = new ArrayList<LogEntry>();
+        for (Map<Long, LogEntry> map : index.values()) {
+            live.addAll(map.values());
+        }
+        File tmp = new File(logFile.getParentFile(), logFile.getName() + ".tmp");
+        writeLog(tmp, live);
+        out.close();
+        if (!tmp.renameTo(logFile)) {
+            // some platforms won't rename over an existing file
+            if (!logFile.delete() || !tmp.renameTo(logFile)) {
+                openForAppend();
+                throw new IOException("can't rename " + tmp + " to " + logFile);
+            }
+        }
+        logSize = committedSize = logFile.length();
+        openForAppend();
+        Debugger.getInstance().debug(String.format("compacted %s from %d to %d bytes in %.2fms",
+                logFile, oldSize, logSize, (System.nanoTime() - start) / 1000000.0));
+    }
+
+    private static void writeLog(File file, List<LogEntry> entries) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            for (LogEntry entry : entries) {
+                entry.write(dos);
+            }
+            if (!entries.isEmpty()) {
+                dos.writeByte(OP_COMMIT);
+            }
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            dos.close();
+        }
+    }
+
+    private void openForAppend() throws IOException {
+        logStream = new FileOutputStream(logFile, true);
+        out = new DataOutputStream(new BufferedOutputStream(logStream));
+    }
+
+    private static class LogEntry {
+        private final byte op;
+        private final UUID worldID;
+        private final int x, y, z;
+        private final String type;
+        private final String data;
+        private final byte[] binaryData;
+        private int size;
+
+        private LogEntry(byte op, UUID worldID, int x, int y, int z, String type, String data, byte[] binaryData) {
+            this.op = op;
+            this.worldID = worldID;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.type = type;
+            this.data = data;
+            this.binaryData = binaryData;
+        }
+
+        private StoredBlock toStoredBlock() {
+            return new StoredBlock(type, x, y, z, data, binaryData);
+        }
+
+        private int write(DataOutputStream dos) throws IOException {
+            int start = dos.size();
+            dos.writeByte(op);
+            dos.writeLong(worldID.getMostSignificantBits());
+            dos.writeLong(worldID.getLeastSignificantBits());
+            dos.writeInt(x);
+            dos.writeInt(y);
+            dos.writeInt(z);
+            if (op == OP_UPSERT) {
+                writeBytes(dos, type.getBytes(UTF8));
+                writeBytes(dos, data.getBytes(UTF8));
+                writeBytes(dos, binaryData);
+            }
+            size = dos.size() - start;
+            return size;
+        }
+
+        private static LogEntry read(byte op, DataInputStream in) throws IOException {
+            UUID worldID = new UUID(in.readLong(), in.readLong());
+            int x = in.readInt();
+            int y = in.readInt();
+            int z = in.readInt();
+            LogEntry entry;
+            if (op == OP_UPSERT) {
+                String type = new String(readBytes(in), UTF8);
+                String data = new String(readBytes(in), UTF8);
+                entry = new LogEntry(op, worldID, x, y, z, type, data, readBytes(in));
+                entry.size = 29 + 12 + type.getBytes(UTF8).length + data.getBytes(UTF8).length
+                        + (entry.binaryData == null ? 0 : entry.binaryData.length);
+            } else {
+                entry = new LogEntry(op, worldID, x, y, z, null, null, null);
+                entry.size = 29;
+            }
+            return entry;
+        }
+
+        private static void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+            if (bytes == null) {
+                dos.writeInt(-1);
+            } else {
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+            }
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            int len = in.readInt();
+            if (len < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[len];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+}
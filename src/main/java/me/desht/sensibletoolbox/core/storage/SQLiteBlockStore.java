@@ -0,0 +1,194 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import me.desht.dhutils.Debugger;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.UUID;
+
+/**
+ * The default block store: a table in an SQLite database.  There is a single
+ * connection, shared by the main thread (for loading) and the DB writer
+ * thread, so all access to it is synchronized.
+ */
+public class SQLiteBlockStore implements BlockStore {
+    private final DBStorage dbStorage;
+    private final boolean batched;
+    private final PreparedStatement queryStmt;
+    private final PreparedStatement queryTypeStmt;
+    private final PreparedStatement queryChunkStmt;
+    private final PreparedStatement upsertStmt;
+    private final PreparedStatement deleteStmt;
+    private int nUpserts, nDeletes;
+
+    /**
+     * Open the SQLite block store.
+     *
+     * @param batched if true, upserts and deletes are sent to the database
+     *                as a JDBC batch when committed; otherwise, each one is
+     *                executed immediately
+     * @throws IOException if the database can't be opened
+     */
+    public SQLiteBlockStore(boolean batched) throws IOException {
+        this.batched = batched;
+        try {
+            dbStorage = new DBStorage();
+            Connection conn = dbStorage.getConnection();
+            conn.setAutoCommit(false);
+            String tableName = DBStorage.makeTableName("blocks");
+            queryStmt = conn.prepareStatement("SELECT * FROM " + tableName + " WHERE world_id = ?");
+            queryTypeStmt = conn.prepareStatement("SELECT * FROM " + tableName + " WHERE world_id = ? and type = ?");
+            queryChunkStmt = conn.prepareStatement("SELECT * FROM " + tableName + " WHERE world_id = ? and chunk_x = ? and chunk_z = ?");
+            upsertStmt = conn.prepareStatement("INSERT OR REPLACE INTO " + tableName + " (world_id, x, y, z, type, data, bdata, chunk_x, chunk_z) VALUES(?,?,?,?,?,?,?,?,?)");
+            deleteStmt = conn.prepareStatement("DELETE FROM " + tableName + " WHERE world_id = ? and x = ? and y = ? and z = ?");
+        } catch (ClassNotFoundException e) {
+            throw new IOException("SQLite driver not found", e);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void loadWorld(UUID worldID, RowHandler handler) throws IOException {
+        try {
+            queryStmt.setString(1, worldID.toString());
+            readRows(queryStmt.executeQuery(), handler);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void loadType(UUID worldID, String type, RowHandler handler) throws IOException {
+        try {
+            queryTypeStmt.setString(1, worldID.toString());
+            queryTypeStmt.setString(2, type);
+            readRows(queryTypeStmt.executeQuery(), handler);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void loadChunk(UUID worldID, int chunkX, int chunkZ, RowHandler handler) throws IOException {
+        try {
+            queryChunkStmt.setString(1, worldID.toString());
+            queryChunkStmt.setInt(2, chunkX);
+            queryChunkStmt.setInt(3, chunkZ);
+            readRows(queryChunkStmt.executeQuery(), handler);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void readRows(ResultSet rs, RowHandler handler) throws SQLException, IOException {
+        try {
+            while (rs.next()) {
+                handler.handle(new StoredBlock(rs.getString("type"), rs.getInt("x"), rs.getInt("y"), rs.getInt("z"),
+                        rs.getString("data"), rs.getBytes("bdata")));
+            }
+        } finally {
+            rs.close();
+        }
+    }
+
+    @Override
+    public synchronized void upsert(UpdateRecord rec) throws IOException {
+        try {
+            upsertStmt.setString(1, rec.getWorldID().toString());
+            upsertStmt.setInt(2, rec.getX());
+            upsertStmt.setInt(3, rec.getY());
+            upsertStmt.setInt(4, rec.getZ());
+            upsertStmt.setString(5, rec.getType());
+            upsertStmt.setString(6, rec.getData());
+            if (rec.getBinaryData() != null) {
+                upsertStmt.setBytes(7, rec.getBinaryData());
+            } else {
+                upsertStmt.setNull(7, Types.BLOB);
+            }
+            upsertStmt.setInt(8, rec.getX() >> 4);
+            upsertStmt.setInt(9, rec.getZ() >> 4);
+            if (batched) {
+                upsertStmt.addBatch();
+            } else {
+                upsertStmt.executeUpdate();
+            }
+            nUpserts++;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(UpdateRecord rec) throws IOException {
+        try {
+            deleteStmt.setString(1, rec.getWorldID().toString());
+            deleteStmt.setInt(2, rec.getX());
+            deleteStmt.setInt(3, rec.getY());
+            deleteStmt.setInt(4, rec.getZ());
+            if (batched) {
+                deleteStmt.addBatch();
+            } else {
+                deleteStmt.executeUpdate();
+            }
+            nDeletes++;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void commit() throws IOException {
+        long start = System.nanoTime();
+        int nRows = 0;
+        Connection conn = dbStorage.getConnection();
+        try {
+            if (batched) {
+                // each location appears at most once per commit (see CommitWindow), so the order doesn't matter
+                nRows += countRows(nDeletes > 0 ? deleteStmt.executeBatch() : null);
+                nRows += countRows(nUpserts > 0 ? upsertStmt.executeBatch() : null);
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException e2) {
+                e2.printStackTrace();
+            }
+            throw new IOException(e);
+        } finally {
+            try {
+                deleteStmt.clearBatch();
+                upsertStmt.clearBatch();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            Debugger.getInstance().debug(String.format("DB commit: %d upserts, %d deletes, %d rows modified in %.2fms",
+                    nUpserts, nDeletes, nRows, (System.nanoTime() - start) / 1000000.0));
+            nUpserts = nDeletes = 0;
+        }
+    }
+
+    private int countRows(int[] results) {
+        int n = 0;
+        if (results != null) {
+            for (int res : results) {
+                if (res > 0) {
+                    n += res;
+                } else if (res == Statement.SUCCESS_NO_INFO) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            dbStorage.getConnection().close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
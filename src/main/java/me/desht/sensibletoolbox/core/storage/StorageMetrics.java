@@ -0,0 +1,280 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Instrumentation for the block storage pipeline: the queue between the
+ * main thread and the DB writer thread, the time taken by block store
+ * operations, and the main-thread cost of freezing blocks for a save or
+ * for the journal.
+ * <p/>
+ * Updated from both the main thread and the DB writer thread, so all
+ * counters are atomic.
+ */
+public class StorageMetrics {
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicLong peakQueueDepth = new AtomicLong();
+    private final Histogram upsertTime = new Histogram();
+    private final Histogram deleteTime = new Histogram();
+    private final Histogram commitTime = new Histogram();
+    private final Histogram journalFlushTime = new Histogram();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong savedRecords = new AtomicLong();
+    private final AtomicLong maxSaveRecords = new AtomicLong();
+    private final Map<String, TypeStats> freezeStats = new ConcurrentHashMap<String, TypeStats>();
+
+    void queueChanged(int depth) {
+        queueDepth.set(depth);
+        long peak;
+        do {
+            peak = peakQueueDepth.get();
+        } while (depth > peak && !peakQueueDepth.compareAndSet(peak, depth));
+    }
+
+    void upserted(long nanos) {
+        upsertTime.add(nanos);
+    }
+
+    void deleted(long nanos) {
+        deleteTime.add(nanos);
+    }
+
+    void committed(long nanos) {
+        commitTime.add(nanos);
+    }
+
+    void journalFlushed(long nanos) {
+        journalFlushTime.add(nanos);
+    }
+
+    void saved(int nRecords) {
+        saves.incrementAndGet();
+        savedRecords.addAndGet(nRecords);
+        long max;
+        do {
+            max = maxSaveRecords.get();
+        } while (nRecords > max && !maxSaveRecords.compareAndSet(max, nRecords));
+    }
+
+    void frozen(String type, long nanos) {
+        TypeStats stats = freezeStats.get(type);
+        if (stats == null) {
+            stats = new TypeStats(type);
+            freezeStats.put(type, stats);
+        }
+        stats.add(nanos);
+    }
+
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    public Histogram getUpsertTime() {
+        return upsertTime;
+    }
+
+    public Histogram getDeleteTime() {
+        return deleteTime;
+    }
+
+    public Histogram getCommitTime() {
+        return commitTime;
+    }
+
+    /**
+     * Get the main-thread time taken by each journal flush, which is spent
+     * taking snapshots (or freezing blocks which don't support them).
+     *
+     * @return the journal flush time histogram
+     */
+    public Histogram getJournalFlushTime() {
+        return journalFlushTime;
+    }
+
+    public long getSaveCount() {
+        return saves.get();
+    }
+
+    public double getAverageRecordsPerSave() {
+        long n = saves.get();
+        return n == 0 ? 0.0 : savedRecords.get() / (double) n;
+    }
+
+    public long getMaxRecordsPerSave() {
+        return maxSaveRecords.get();
+    }
+
+    /**
+     * Get the per-type freeze statistics, most expensive (by total time) first.
+     *
+     * @return a list of freeze statistics
+     */
+    public List<TypeStats> getFreezeStats() {
+        List<TypeStats> res = new ArrayList<TypeStats>(freezeStats.values());
+        Collections.sort(res, new Comparator<TypeStats>() {
+            @Override
+            public int compare(TypeStats o1, TypeStats o2) {
+                long t1 = o1.getTotalTime(), t2 = o2.getTotalTime();
+                return t1 < t2 ? 1 : (t1 > t2 ? -1 : 0);
+            }
+        });
+        return res;
+    }
+
+    /**
+     * Reset everything except the current queue depth.
+     */
+    public void reset() {
+        peakQueueDepth.set(queueDepth.get());
+        upsertTime.reset();
+        deleteTime.reset();
+        commitTime.reset();
+        journalFlushTime.reset();
+        saves.set(0);
+        savedRecords.set(0);
+        maxSaveRecords.set(0);
+        freezeStats.clear();
+    }
+
+    /**
+     * A one-line summary, suitable for periodic logging.
+     *
+     * @return a summary of the metrics
+     */
+    public String summary() {
+        return String.format("queue %d (peak %d), %d saves (avg %.1f records, max %d), upsert %s, delete %s, commit %s, journal flush %s",
+                getQueueDepth(), getPeakQueueDepth(), getSaveCount(), getAverageRecordsPerSave(), getMaxRecordsPerSave(),
+                upsertTime, deleteTime, commitTime, journalFlushTime);
+    }
+
+    /**
+     * A latency histogram with power-of-two nanosecond buckets: bucket N
+     * counts samples in the range [2^N, 2^(N+1)).
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 40;  // up to ~18 minutes
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void add(long nanos) {
+            int bucket = nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+            counts.incrementAndGet(bucket);
+            total.incrementAndGet();
+            totalTime.addAndGet(nanos);
+            long m;
+            do {
+                m = max.get();
+            } while (nanos > m && !max.compareAndSet(m, nanos));
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            total.set(0);
+            totalTime.set(0);
+            max.set(0);
+        }
+
+        public long getCount() {
+            return total.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getMean() {
+            long n = total.get();
+            return n == 0 ? 0 : totalTime.get() / n;
+        }
+
+        /**
+         * Get an upper bound for the given percentile.
+         *
+         * @param pct the percentile, 0.0 - 1.0
+         * @return the upper bound of the bucket containing the percentile, in ns
+         */
+        public long getPercentile(double pct) {
+            long n = total.get();
+            if (n == 0) {
+                return 0;
+            }
+            long wanted = (long) Math.ceil(n * pct);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= wanted) {
+                    return Math.min(1L << (i + 1), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.2fms p50<%.2fms p99<%.2fms max=%.2fms",
+                    getCount(), getMean() / 1000000.0, getPercentile(0.5) / 1000000.0,
+                    getPercentile(0.99) / 1000000.0, getMax() / 1000000.0);
+        }
+    }
+
+    /**
+     * Main-thread freeze cost for one block type, for saves and the journal.
+     */
+    public static class TypeStats {
+        private final String type;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private TypeStats(String type) {
+            this.type = type;
+        }
+
+        void add(long nanos) {
+            count.incrementAndGet();
+            totalTime.addAndGet(nanos);
+            long m;
+            do {
+                m = max.get();
+            } while (nanos > m && !max.compareAndSet(m, nanos));
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalTime() {
+            return totalTime.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            long n = getCount();
+            return String.format("%s: n=%d mean=%.3fms max=%.3fms", type, n,
+                    n == 0 ? 0.0 : getTotalTime() / (double) n / 1000000.0, getMax() / 1000000.0);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * A single block as read from a {@link BlockStore}, not yet turned into an
+ * STB block.  The payload can be parsed on any thread; constructing and
+ * registering the block must be done on the main thread.
+ */
+public class StoredBlock implements Callable<YamlConfiguration> {
+    final String type;
+    final int x, y, z;
+    final String data;
+    final byte[] binaryData;
+    private long parseTime;
+
+    /**
+     * Create a stored block.
+     *
+     * @param type the STB item type ID
+     * @param x block X coordinate
+     * @param y block Y coordinate
+     * @param z block Z coordinate
+     * @param data the YAML data; empty if the block uses binary data
+     * @param binaryData the binary data (see {@link BlockStateCodec}); may be null
+     */
+    public StoredBlock(String type, int x, int y, int z, String data, byte[] binaryData) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.data = data;
+        this.binaryData = binaryData;
+    }
+
+    boolean isBinary() {
+        return binaryData != null && binaryData.length > 0;
+    }
+
+    int getPayloadSize() {
+        return isBinary() ? binaryData.length : data.length();
+    }
+
+    long getPayloadHash() {
+        return UpdateRecord.payloadHash(type, data, binaryData);
+    }
+
+    /**
+     * Get the time taken by the last call to {@link #call()}.
+     *
+     * @return the parse time, in nanoseconds
+     */
+    long getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * Parse this row's payload.
+     *
+     * @return the block's frozen configuration
+     * @throws IOException if the binary data can't be decoded
+     * @throws InvalidConfigurationException if the YAML data can't be parsed
+     */
+    @Override
+    public YamlConfiguration call() throws IOException, InvalidConfigurationException {
+        long start = System.nanoTime();
+        YamlConfiguration conf;
+        if (isBinary()) {
+            conf = BlockStateCodec.decode(binaryData);
+        } else {
+            // legacy YAML row; it'll be rewritten in the current format next time the block is updated
+            conf = new YamlConfiguration();
+            conf.loadFromString(data);
+        }
+        parseTime = System.nanoTime() - start;
+        return conf;
+    }
+}
@@ -0,0 +1,121 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Accumulates the time spent in ticking STB blocks' onServerTick() methods,
+ * by world and item type.  Only used from the main thread.
+ */
+public class TickProfiler {
+    private final Map<UUID, Map<String, Timing>> timings = new HashMap<UUID, Map<String, Timing>>();
+    private long startTick;
+
+    TickProfiler(long startTick) {
+        this.startTick = startTick;
+    }
+
+    void record(UUID worldID, String type, long nanos) {
+        Map<String, Timing> map = timings.get(worldID);
+        if (map == null) {
+            map = new HashMap<String, Timing>();
+            timings.put(worldID, map);
+        }
+        Timing t = map.get(type);
+        if (t == null) {
+            t = new Timing(type);
+            map.put(type, t);
+        }
+        t.add(nanos);
+    }
+
+    void reset(long tick) {
+        timings.clear();
+        startTick = tick;
+    }
+
+    /**
+     * Get the server tick at which profiling started, or was last reset.
+     *
+     * @return the starting tick
+     */
+    public long getStartTick() {
+        return startTick;
+    }
+
+    /**
+     * Get the timings by item type, most expensive (by total time) first.
+     *
+     * @param worldID the world to report on, or null for all worlds
+     * @return a list of timings
+     */
+    public List<Timing> getTimings(UUID worldID) {
+        Map<String, Timing> res = new HashMap<String, Timing>();
+        for (Map.Entry<UUID, Map<String, Timing>> entry : timings.entrySet()) {
+            if (worldID != null && !worldID.equals(entry.getKey())) {
+                continue;
+            }
+            for (Timing t : entry.getValue().values()) {
+                Timing sum = res.get(t.type);
+                if (sum == null) {
+                    sum = new Timing(t.type);
+                    res.put(t.type, sum);
+                }
+                sum.merge(t);
+            }
+        }
+        List<Timing> list = new ArrayList<Timing>(res.values());
+        Collections.sort(list);
+        return list;
+    }
+
+    public static class Timing implements Comparable<Timing> {
+        private final String type;
+        private long count;
+        private long totalTime;
+        private long max;
+
+        private Timing(String type) {
+            this.type = type;
+        }
+
+        private void add(long nanos) {
+            count++;
+            totalTime += nanos;
+            if (nanos > max) {
+                max = nanos;
+            }
+        }
+
+        private void merge(Timing other) {
+            count += other.count;
+            totalTime += other.totalTime;
+            max = Math.max(max, other.max);
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public int compareTo(Timing other) {
+            return totalTime < other.totalTime ? 1 : (totalTime > other.totalTime ? -1 : 0);
+        }
+    }
+}
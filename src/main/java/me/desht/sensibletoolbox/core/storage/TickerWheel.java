@@ -0,0 +1,269 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import me.desht.sensibletoolbox.api.items.BaseSTBBlock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A hashed timing wheel of ticking STB blocks, keyed by the server tick at
+ * which each block is next due.  Each server tick only visits the blocks in
+ * one slot of the wheel; blocks which are due more than one revolution
+ * ahead just stay in their slot until their tick comes round.
+ * <p/>
+ * Entries which are cancelled or parked are dropped from the wheel lazily,
+ * when their slot is next visited.  A parked entry can be put back on the
+ * wheel with {@link #unpark(Entry, long)}.  Separately, an entry may be put
+ * to sleep when its block has no work to do; it's dropped from the wheel
+ * straight away, and put back with {@link #wake(Entry, long)}.  An entry
+ * which is both parked and asleep stays off the wheel until it's been
+ * unparked and woken.
+ */
+class TickerWheel {
+    private static final int SIZE = 256;  // must be a power of 2
+    private static final int MASK = SIZE - 1;
+
+    private final List<List<Entry>> slots = new ArrayList<List<Entry>>(SIZE);
+    private List<Entry> spare = new ArrayList<Entry>();
+    // due entries which didn't fit into an earlier tick's time budget
+    private final Deque<Entry> deferred = new ArrayDeque<Entry>();
+    private int size;
+
+    TickerWheel() {
+        for (int i = 0; i < SIZE; i++) {
+            slots.add(new ArrayList<Entry>());
+        }
+    }
+
+    /**
+     * Called for each block which has become due.
+     */
+    interface Visitor {
+        /**
+         * Process a due block.  Not called for cancelled or parked entries.
+         *
+         * @param entry the wheel entry
+         * @param now the current tick; may be later than the tick the block
+         *            was due on, if it was deferred
+         * @return the tick at which the block is next due (greater than
+         *         now), or -1 to drop it from the wheel
+         */
+        long due(Entry entry, long now);
+
+        /**
+         * Check if a due block may be put off to a later tick, when the
+         * tick's time budget has been used up.
+         *
+         * @param entry the wheel entry
+         * @return true if the block may be deferred
+         */
+        boolean canDefer(Entry entry);
+    }
+
+    /**
+     * Add a new entry to the wheel.
+     *
+     * @param stb the ticking block
+     * @param worldID the block's world
+     * @param due the tick on which the block is first due
+     * @param parked if true, the entry starts off parked, and isn't put on
+     *               the wheel until it's unparked
+     * @return the new entry
+     */
+    Entry schedule(BaseSTBBlock stb, UUID worldID, long due, boolean parked) {
+        Entry entry = new Entry(stb, worldID);
+        entry.parked = parked;
+        if (!parked) {
+            add(entry, due);
+        }
+        return entry;
+    }
+
+    /**
+     * Put a parked entry back onto the wheel.  If the entry hasn't yet been
+     * dropped from the wheel, it just carries on as before.
+     *
+     * @param entry the entry
+     * @param due the tick on which the block is next due, if the entry needs
+     *            to be put back on the wheel
+     */
+    void unpark(Entry entry, long due) {
+        entry.parked = false;
+        resume(entry, due);
+    }
+
+    /**
+     * Wake a sleeping entry, putting it back onto the wheel unless it's
+     * also parked.
+     *
+     * @param entry the entry
+     * @param due the tick on which the block is next due
+     */
+    void wake(Entry entry, long due) {
+        entry.asleep = false;
+        resume(entry, due);
+    }
+
+    private void resume(Entry entry, long due) {
+        if (!entry.onWheel && !entry.cancelled && !entry.parked && !entry.asleep) {
+            add(entry, due);
+        }
+    }
+
+    private void add(Entry entry, long due) {
+        entry.due = due;
+        entry.onWheel = true;
+        slots.get(slot(due)).add(entry);
+        size++;
+    }
+
+    /**
+     * Process all the blocks due on the given tick, along with any which
+     * were deferred from earlier ticks.  Deferred blocks go first, in the
+     * order they were deferred, so none of them can be starved.
+     *
+     * @param now the current tick
+     * @param deadline once System.nanoTime() passes this, defer any
+     *                 remaining due blocks to the next tick; 0 for no deadline
+     * @param visitor called for each due block
+     * @return the number of blocks deferred on this tick
+     */
+    int advance(long now, long deadline, Visitor visitor) {
+        boolean overBudget = false;
+        int nDeferred = 0;
+        for (int n = deferred.size(); n > 0; n--) {
+            if (deadline > 0 && System.nanoTime() > deadline) {
+                // the rest stay in the queue, in order
+                overBudget = true;
+                nDeferred += n;
+                break;
+            }
+            process(deferred.poll(), now, visitor);
+        }
+
+        int slot = slot(now);
+        List<Entry> bucket = slots.get(slot);
+        if (bucket.isEmpty()) {
+            return nDeferred;
+        }
+        // anything rescheduled into this slot goes into the fresh list, not the one being walked
+        slots.set(slot, spare);
+        try {
+            for (Entry entry : bucket) {
+                if (entry.due > now && !entry.cancelled && !entry.parked) {
+                    // not due until a later revolution of the wheel
+                    spare.add(entry);
+                    continue;
+                }
+                if (!overBudget && deadline > 0 && System.nanoTime() > deadline) {
+                    overBudget = true;
+                }
+                if (overBudget && !entry.cancelled && !entry.parked && visitor.canDefer(entry)) {
+                    deferred.add(entry);
+                    nDeferred++;
+                } else {
+                    process(entry, now, visitor);
+                }
+            }
+        } finally {
+            bucket.clear();
+            spare = bucket;
+        }
+        return nDeferred;
+    }
+
+    private void process(Entry entry, long now, Visitor visitor) {
+        long next = entry.cancelled || entry.parked ? -1 : visitor.due(entry, now);
+        if (next > now) {
+            entry.due = next;
+            slots.get(slot(next)).add(entry);
+        } else {
+            entry.onWheel = false;
+            size--;
+        }
+    }
+
+    /**
+     * Get the number of due blocks currently deferred to the next tick.
+     *
+     * @return the number of deferred blocks
+     */
+    int getDeferredCount() {
+        return deferred.size();
+    }
+
+    /**
+     * Get the number of entries on the wheel, including any cancelled or
+     * parked entries which haven't been dropped yet.
+     *
+     * @return the number of entries
+     */
+    int size() {
+        return size;
+    }
+
+    private static int slot(long tick) {
+        return (int) (tick & MASK);
+    }
+
+    static class Entry {
+        private final BaseSTBBlock stb;
+        private final UUID worldID;
+        private long due;
+        private boolean onWheel;
+        private boolean parked;
+        private boolean cancelled;
+        private boolean asleep;
+
+        private Entry(BaseSTBBlock stb, UUID worldID) {
+            this.stb = stb;
+            this.worldID = worldID;
+        }
+
+        /**
+         * Take this entry out of service permanently.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Take this entry off the wheel until it's unparked.
+         */
+        void park() {
+            parked = true;
+        }
+
+        boolean isParked() {
+            return parked;
+        }
+
+        /**
+         * Mark this entry as asleep.  Only to be called from
+         * {@link Visitor#due(Entry, long)}, which must then return -1 to
+         * drop the entry from the wheel.
+         */
+        void sleep() {
+            asleep = true;
+        }
+
+        boolean isAsleep() {
+            return asleep;
+        }
+
+        long getDue() {
+            return due;
+        }
+
+        BaseSTBBlock getBlock() {
+            return stb;
+        }
+
+        UUID getWorldID() {
+            return worldID;
+        }
+    }
+}
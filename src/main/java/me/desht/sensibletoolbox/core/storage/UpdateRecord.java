@@ -1,11 +1,19 @@
 package me.desht.sensibletoolbox.core.storage;
 
+import me.desht.dhutils.LogUtils;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 
+import java.nio.charset.Charset;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class UpdateRecord {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     private final Operation op;
     private final UUID worldID;
     private final int x;
@@ -13,6 +21,10 @@ public class UpdateRecord {
     private final int z;
     private String type;
     private String data;
+    private byte[] binaryData;
+    private volatile Future<?> pendingData;  // read from both the main thread and the DB writer thread
+    private Long payloadHash;
+    private long journalSegment;
 
     public static UpdateRecord finishingRecord() {
         return new UpdateRecord(Operation.FINISH, null);
@@ -22,6 +34,28 @@ public class UpdateRecord {
         return new UpdateRecord(Operation.COMMIT, null);
     }
 
+    /**
+     * Create a commit record which completes a save, allowing the given
+     * journal segment (and all earlier ones) to be released once the commit
+     * has succeeded.
+     *
+     * @param journalSegment the journal segment ID
+     * @return a commit record
+     */
+    public static UpdateRecord commitRecord(long journalSegment) {
+        UpdateRecord rec = new UpdateRecord(Operation.COMMIT, null);
+        rec.journalSegment = journalSegment;
+        return rec;
+    }
+
+    public UpdateRecord(Operation op, UUID worldID, int x, int y, int z) {
+        this.op = op;
+        this.worldID = worldID;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
     public UpdateRecord(Operation op, Location loc) {
         this.op = op;
         if (loc != null) {
@@ -72,7 +106,14 @@ public class UpdateRecord {
         this.type = type;
     }
 
+    /**
+     * Get the serialized block data for this record.  If the data is being
+     * serialized on another thread, wait for that to finish first.
+     *
+     * @return the serialized data, or null if there is none (or serialization failed)
+     */
     public String getData() {
+        awaitPendingData();
         return data;
     }
 
@@ -80,6 +121,57 @@ public class UpdateRecord {
         this.data = data;
     }
 
+    /**
+     * Get the binary-encoded block data for this record (see
+     * {@link BlockStateCodec}).  If the data is being serialized on another
+     * thread, wait for that to finish first.
+     *
+     * @return the encoded data, or null if the block data is stored as YAML text
+     */
+    public byte[] getBinaryData() {
+        awaitPendingData();
+        return binaryData;
+    }
+
+    public void setBinaryData(byte[] binaryData) {
+        this.binaryData = binaryData;
+    }
+
+    private void awaitPendingData() {
+        Future<?> pending = pendingData;
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LogUtils.severe("can't serialize STB block data for " + this + ": " + e.getCause());
+            }
+            pendingData = null;
+        }
+    }
+
+    /**
+     * Mark this record's data as being serialized asynchronously; the given
+     * future must call {@link #setData(String)} (and optionally
+     * {@link #setBinaryData(byte[])}) before it completes.
+     *
+     * @param pendingData the serialization task
+     */
+    public void setPendingData(Future<?> pendingData) {
+        this.pendingData = pendingData;
+    }
+
+    /**
+     * Get the journal segment which can be released once this commit record
+     * has been processed.
+     *
+     * @return the journal segment ID, or 0 if there is none
+     */
+    public long getJournalSegment() {
+        return journalSegment;
+    }
+
     public UUID getWorldID() {
         return worldID;
     }
@@ -96,6 +188,60 @@ public class UpdateRecord {
         return z;
     }
 
+    /**
+     * Get this record's block position packed into a single long, for use as
+     * a compact per-world map key.
+     *
+     * @return the packed position
+     */
+    long getPackedPosition() {
+        return packPosition(x, y, z);
+    }
+
+    static long packPosition(int x, int y, int z) {
+        return BlockPosition.pack(x, y, z);
+    }
+
+    /**
+     * Get a 64-bit hash of the payload which this record would write to the
+     * database.  Waits for any pending serialization to complete.
+     *
+     * @return the payload hash
+     */
+    long getPayloadHash() {
+        if (payloadHash == null) {
+            payloadHash = payloadHash(getType(), getData(), getBinaryData());
+        }
+        return payloadHash;
+    }
+
+    /**
+     * Compute a 64-bit FNV-1a hash of a database row's payload.
+     *
+     * @param type the block type
+     * @param data the text data; may be null
+     * @param binaryData the binary data; may be null
+     * @return the payload hash
+     */
+    static long payloadHash(String type, String data, byte[] binaryData) {
+        long h = FNV_OFFSET;
+        h = fnv(h, type == null ? new byte[0] : type.getBytes(UTF8));
+        h = fnv(h, data == null ? new byte[0] : data.getBytes(UTF8));
+        h = fnv(h, binaryData == null ? new byte[0] : binaryData);
+        return h;
+    }
+
+    private static long fnv(long h, byte[] bytes) {
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= FNV_PRIME;
+        }
+        // field separator, so that ("ab", "c") and ("a", "bc") hash differently
+        h ^= 0xff;
+        h *= FNV_PRIME;
+        return h;
+    }
+
     @Override
     public String toString() {
         switch (op) {
@@ -3,6 +3,9 @@ package me.desht.sensibletoolbox.listeners;
 import me.desht.sensibletoolbox.SensibleToolboxPlugin;
 import me.desht.sensibletoolbox.core.storage.LocationManager;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 
@@ -13,27 +16,25 @@ public class WorldListener extends STBBaseListener {
 
     @EventHandler
     public void onWorldLoad(WorldLoadEvent event) {
+        // nets must be restored before the world's machines are registered
+        plugin.getEnergyNetManager().restoreNets(event.getWorld());
         LocationManager.getManager().worldLoaded(event.getWorld());
     }
 
     @EventHandler
     public void onWorldUnLoad(WorldUnloadEvent event) {
+        plugin.getEnergyNetManager().worldUnloaded(event.getWorld());
         LocationManager.getManager().worldUnloaded(event.getWorld());
     }
 
-//	@EventHandler(priority = EventPriority.MONITOR)
-//	public void onChunkUnload(ChunkUnloadEvent event) {
-//		for (BaseSTBBlock stb : LocationManager.getManager().get(event.getChunk())) {
-//			stb.onChunkUnload();
-//		}
-////		System.out.println("chunk unload: " + event.getChunk().toString() + " cancelled = " + event.isCancelled());
-//	}
-//
-//	@EventHandler(priority = EventPriority.MONITOR)
-//	public void onChunkLoad(ChunkLoadEvent event) {
-//		for (BaseSTBBlock stb : LocationManager.getManager().get(event.getChunk())) {
-//			stb.onChunkLoad();
-//		}
-////		System.out.println("chunk load: " + event.getChunk().toString());
-//	}
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        LocationManager.getManager().chunkUnloaded(event.getChunk());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        plugin.getEnergyNetManager().chunkLoaded(event.getChunk());
+        LocationManager.getManager().chunkLoaded(event.getChunk());
+    }
 }
@@ -0,0 +1,211 @@
+package me.desht.sensibletoolbox.util;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map with primitive long keys, using open addressing with linear
+ * probing.  Avoids boxing the keys, and the per-entry objects that a
+ * java.util.HashMap would need.  Null values are not allowed.
+ * <p/>
+ * Not thread-safe.
+ *
+ * @param <V> the value type
+ */
+public class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int modCount;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashMap(int expectedSize) {
+        int cap = MIN_CAPACITY;
+        while (cap * 3 / 4 < expectedSize) {
+            cap <<= 1;
+        }
+        allocate(cap);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return values[find(key)] != null;
+    }
+
+    public V get(long key) {
+        //noinspection unchecked
+        return (V) values[find(key)];
+    }
+
+    /**
+     * Associate a value with a key.
+     *
+     * @param key the key
+     * @param value the value; may not be null
+     * @return the previous value for the key, or null if there was none
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null values are not allowed");
+        }
+        int slot = find(key);
+        //noinspection unchecked
+        V old = (V) values[slot];
+        keys[slot] = key;
+        values[slot] = value;
+        if (old == null) {
+            modCount++;
+            if (++size > (mask + 1) * 3 / 4) {
+                rehash((mask + 1) << 1);
+            }
+        }
+        return old;
+    }
+
+    public V remove(long key) {
+        int slot = find(key);
+        //noinspection unchecked
+        V old = (V) values[slot];
+        if (old != null) {
+            removeSlot(slot);
+        }
+        return old;
+    }
+
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(values, null);
+            size = 0;
+            modCount++;
+        }
+    }
+
+    /**
+     * Get a view of the values in this map.  The view's iterator does not
+     * support removal.
+     *
+     * @return a collection view of the values
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Find the slot holding the given key, or the empty slot where it
+     * would be inserted.
+     */
+    private int find(long key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void removeSlot(int slot) {
+        // shift back any following entries which would no longer be reachable
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            // move the entry unless its home slot lies cyclically in (gap, next]
+            boolean stays = gap <= next ? (home > gap && home <= next) : (home > gap || home <= next);
+            if (!stays) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = null;
+        size--;
+        modCount++;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private class ValueIterator implements Iterator<V> {
+        private final int expectedModCount = modCount;
+        private int next = advance(0);
+
+        private int advance(int from) {
+            while (from < values.length && values[from] == null) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        @Override
+        public V next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= values.length) {
+                throw new NoSuchElementException();
+            }
+            //noinspection unchecked
+            V v = (V) values[next];
+            next = advance(next + 1);
+            return v;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package me.desht.sensibletoolbox.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs, using open addressing with linear probing.
+ * Avoids boxing, and the per-entry objects that a java.util.HashSet would
+ * need.
+ * <p/>
+ * Not thread-safe.
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int cap = MIN_CAPACITY;
+        while (cap * 3 / 4 < expectedSize) {
+            cap <<= 1;
+        }
+        allocate(cap);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long key) {
+        return used[find(key)];
+    }
+
+    /**
+     * Add a key to the set.
+     *
+     * @param key the key
+     * @return true if the key was added; false if it was already present
+     */
+    public boolean add(long key) {
+        int slot = find(key);
+        if (used[slot]) {
+            return false;
+        }
+        keys[slot] = key;
+        used[slot] = true;
+        if (++size > (mask + 1) * 3 / 4) {
+            rehash((mask + 1) << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Remove a key from the set.
+     *
+     * @param key the key
+     * @return true if the key was removed; false if it wasn't present
+     */
+    public boolean remove(long key) {
+        int slot = find(key);
+        if (!used[slot]) {
+            return false;
+        }
+        // shift back any following entries which would no longer be reachable
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (used[next]) {
+            int home = hash(keys[next]) & mask;
+            // move the entry unless its home slot lies cyclically in (gap, next]
+            boolean stays = gap <= next ? (home > gap && home <= next) : (home > gap || home <= next);
+            if (!stays) {
+                keys[gap] = keys[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[gap] = false;
+        size--;
+        return true;
+    }
+
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(used, false);
+            size = 0;
+        }
+    }
+
+    /**
+     * Get the keys in this set, in no particular order.
+     *
+     * @return a new array of the keys
+     */
+    public long[] toArray() {
+        long[] res = new long[size];
+        int n = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                res[n++] = keys[i];
+            }
+        }
+        return res;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Find the slot holding the given key, or the empty slot where it
+     * would be inserted.
+     */
+    private int find(long key) {
+        int slot = hash(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                used[slot] = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package me.desht.sensibletoolbox.core.energy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class EnergyNetStoreTest {
+    private static final long WORLD_TIME = 123456789L;
+
+    private File dataFolder;
+    private EnergyNetStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dataFolder = File.createTempFile("enets", "");
+        assertTrue(dataFolder.delete() && dataFolder.mkdir());
+        store = new EnergyNetStore(dataFolder);
+    }
+
+    @After
+    public void tearDown() {
+        File dir = new File(dataFolder, "enets");
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+        dataFolder.delete();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random rnd = new Random(1);
+        List<long[]> nets = new ArrayList<long[]>();
+        for (int i = 0; i < 20; i++) {
+            long[] cables = new long[rnd.nextInt(200) + 1];
+            for (int j = 0; j < cables.length; j++) {
+                cables[j] = rnd.nextLong();
+            }
+            nets.add(cables);
+        }
+        nets.add(new long[] { 0, -1, Long.MIN_VALUE, Long.MAX_VALUE });
+        UUID worldID = UUID.randomUUID();
+        store.save(worldID, WORLD_TIME, nets);
+
+        List<long[]> loaded = store.load(worldID, WORLD_TIME);
+        assertNotNull(loaded);
+        assertEquals(nets.size(), loaded.size());
+        for (int i = 0; i < nets.size(); i++) {
+            assertArrayEquals("net " + i, nets.get(i), loaded.get(i));
+        }
+    }
+
+    @Test
+    public void noNets() throws IOException {
+        UUID worldID = UUID.randomUUID();
+        store.save(worldID, WORLD_TIME, Collections.<long[]>emptyList());
+        List<long[]> loaded = store.load(worldID, WORLD_TIME);
+        assertNotNull(loaded);
+        assertTrue(loaded.isEmpty());
+    }
+
+    @Test
+    public void nothingSaved() throws IOException {
+        assertNull(store.load(UUID.randomUUID(), WORLD_TIME));
+    }
+
+    @Test
+    public void onlyLoadedOnce() throws IOException {
+        UUID worldID = UUID.randomUUID();
+        store.save(worldID, WORLD_TIME, Collections.singletonList(new long[] { 1, 2, 3 }));
+        assertNotNull(store.load(worldID, WORLD_TIME));
+        assertNull(store.load(worldID, WORLD_TIME));
+    }
+
+    @Test
+    public void worldsAreSeparate() throws IOException {
+        UUID world1 = UUID.randomUUID(), world2 = UUID.randomUUID();
+        store.save(world1, WORLD_TIME, Collections.singletonList(new long[] { 1 }));
+        store.save(world2, WORLD_TIME, Collections.singletonList(new long[] { 2 }));
+        assertArrayEquals(new long[] { 2 }, store.load(world2, WORLD_TIME).get(0));
+        assertArrayEquals(new long[] { 1 }, store.load(world1, WORLD_TIME).get(0));
+    }
+
+    @Test
+    public void staleLayoutRejected() throws IOException {
+        UUID worldID = UUID.randomUUID();
+        store.save(worldID, WORLD_TIME, Collections.singletonList(new long[] { 1, 2, 3 }));
+        try {
+            store.load(worldID, WORLD_TIME + 1);
+            fail("stale layout was loaded");
+        } catch (IOException expected) {
+            // the world has been run since the layout was saved
+        }
+        // and not trusted next time either
+        assertNull(store.load(worldID, WORLD_TIME));
+    }
+
+    @Test
+    public void truncatedFileRejected() throws IOException {
+        UUID worldID = UUID.randomUUID();
+        store.save(worldID, WORLD_TIME, Collections.singletonList(new long[] { 1, 2, 3 }));
+        File f = new File(new File(dataFolder, "enets"), worldID + ".dat");
+        FileOutputStream out = new FileOutputStream(f, true);
+        try {
+            out.getChannel().truncate(f.length() - 4);
+        } finally {
+            out.close();
+        }
+        try {
+            store.load(worldID, WORLD_TIME);
+            fail("truncated layout was loaded");
+        } catch (IOException expected) {
+            // EOF part-way through the cables
+        }
+    }
+}
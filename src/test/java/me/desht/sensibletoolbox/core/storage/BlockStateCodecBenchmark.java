@@ -0,0 +1,257 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Compares the size and the encode and parse times of STB block data
+ * stored as YAML text and as {@link BlockStateCodec} binary data.
+ * <p/>
+ * Given the path of a blocks database (and optionally its table prefix,
+ * "stb_" by default), the rows in it are used, whichever format they're
+ * stored in; this needs the SQLite JDBC driver on the classpath.  With no
+ * arguments, a mix of machine, item router and plain block rows like those
+ * the plugin writes is generated instead: inventories are Java-serialized
+ * maps in the shape BukkitSerialization writes item stacks in.
+ * <p/>
+ * This isn't a unit test, so it's not run by the build; run it by hand
+ * after <code>mvn test-compile</code>, with the test and main classes and
+ * Bukkit on the classpath:
+ * <pre>
+ * java -cp target/test-classes:target/classes:bukkit.jar me.desht.sensibletoolbox.core.storage.BlockStateCodecBenchmark [blocks.db [prefix]]
+ * </pre>
+ */
+public class BlockStateCodecBenchmark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int GENERATED_ROWS = 8000;
+    private static final int RUNS = 5;
+
+    private static final String[] MATERIALS = {
+            "COBBLESTONE", "IRON_ORE", "GOLD_ORE", "COAL", "LOG", "SAND", "DIAMOND", "REDSTONE", "WHEAT", "IRON_INGOT"
+    };
+    private static final String[] MACHINES = { "smelter", "masher", "sawmill", "heatengine", "pump", "autobuilder" };
+    private static final String[] MODULES = { "sendermodule", "receivermodule", "pullermodule", "sortermodule", "speedmodule", "stackmodule" };
+
+    public static void main(String[] args) throws Exception {
+        List<YamlConfiguration> rows;
+        if (args.length > 0) {
+            rows = readDatabase(args[0], args.length > 1 ? args[1] : "stb_");
+        } else {
+            rows = generateRows(new Random(1));
+        }
+        if (rows.isEmpty()) {
+            System.out.println("no rows");
+            return;
+        }
+
+        List<String> texts = new ArrayList<String>(rows.size());
+        List<byte[]> binaries = new ArrayList<byte[]>(rows.size());
+        long textBytes = 0, binaryBytes = 0;
+        for (YamlConfiguration conf : rows) {
+            String text = conf.saveToString();
+            byte[] binary = BlockStateCodec.encode(conf);
+            texts.add(text);
+            binaries.add(binary);
+            textBytes += text.getBytes(UTF8).length;
+            binaryBytes += binary.length;
+        }
+
+        double[] yamlEncode = new double[RUNS], binaryEncode = new double[RUNS];
+        double[] yamlParse = new double[RUNS], binaryParse = new double[RUNS];
+        int sink = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (YamlConfiguration conf : rows) {
+                sink += conf.saveToString().length();
+            }
+            yamlEncode[run] = perRow(start, rows.size());
+
+            start = System.nanoTime();
+            for (YamlConfiguration conf : rows) {
+                sink += BlockStateCodec.encode(conf).length;
+            }
+            binaryEncode[run] = perRow(start, rows.size());
+
+            start = System.nanoTime();
+            for (String text : texts) {
+                YamlConfiguration conf = new YamlConfiguration();
+                conf.loadFromString(text);
+                sink += conf.getKeys(false).size();
+            }
+            yamlParse[run] = perRow(start, rows.size());
+
+            start = System.nanoTime();
+            for (byte[] binary : binaries) {
+                sink += BlockStateCodec.decode(binary).getKeys(false).size();
+            }
+            binaryParse[run] = perRow(start, rows.size());
+        }
+
+        System.out.println(String.format("%d rows (%s), best of %d runs", rows.size(),
+                args.length > 0 ? args[0] : "generated", RUNS));
+        System.out.println(String.format("%-7s %10s %9s %12s %12s", "format", "bytes", "bytes/row", "encode us/row", "parse us/row"));
+        System.out.println(String.format("%-7s %10d %9d %12.1f %12.1f", "YAML", textBytes, textBytes / rows.size(), best(yamlEncode), best(yamlParse)));
+        System.out.println(String.format("%-7s %10d %9d %12.1f %12.1f", "binary", binaryBytes, binaryBytes / rows.size(), best(binaryEncode), best(binaryParse)));
+        System.out.println(String.format("binary/YAML: size %.2f, encode %.2f, parse %.2f",
+                (double) binaryBytes / textBytes, best(binaryEncode) / best(yamlEncode), best(binaryParse) / best(yamlParse)));
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static double perRow(long start, int nRows) {
+        return (System.nanoTime() - start) / 1000.0 / nRows;
+    }
+
+    private static double best(double[] times) {
+        // the best rather than the mean, so that JIT warmup doesn't count
+        double res = Double.MAX_VALUE;
+        for (double t : times) {
+            res = Math.min(res, t);
+        }
+        return res;
+    }
+
+    private static List<YamlConfiguration> readDatabase(String path, String prefix)
+            throws ClassNotFoundException, SQLException, IOException, InvalidConfigurationException {
+        Class.forName("org.sqlite.JDBC");
+        List<YamlConfiguration> res = new ArrayList<YamlConfiguration>();
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT data, bdata FROM " + prefix + "blocks");
+            while (rs.next()) {
+                byte[] binary = rs.getBytes("bdata");
+                if (binary != null) {
+                    res.add(BlockStateCodec.decode(binary));
+                } else {
+                    YamlConfiguration conf = new YamlConfiguration();
+                    conf.loadFromString(rs.getString("data"));
+                    res.add(conf);
+                }
+            }
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+        return res;
+    }
+
+    private static List<YamlConfiguration> generateRows(Random rnd) throws IOException {
+        List<YamlConfiguration> res = new ArrayList<YamlConfiguration>(GENERATED_ROWS);
+        for (int i = 0; i < GENERATED_ROWS; i++) {
+            int kind = rnd.nextInt(10);
+            if (kind < 5) {
+                res.add(machine(rnd));
+            } else if (kind < 8) {
+                res.add(itemRouter(rnd));
+            } else {
+                res.add(block(rnd));
+            }
+        }
+        return res;
+    }
+
+    // as BaseSTBBlock.freeze()
+    private static YamlConfiguration block(Random rnd) {
+        YamlConfiguration conf = new YamlConfiguration();
+        conf.set("owner", UUID.randomUUID().toString());
+        conf.set("facing", rnd.nextBoolean() ? "NORTH" : "EAST");
+        conf.set("redstoneBehaviour", "IGNORE");
+        conf.set("accessControl", "PUBLIC");
+        conf.set("labels", (byte) 0);
+        return conf;
+    }
+
+    // as BaseSTBMachine.freeze()
+    private static YamlConfiguration machine(Random rnd) throws IOException {
+        YamlConfiguration conf = block(rnd);
+        conf.set("charge", rnd.nextInt(10000) / 3.0);
+        conf.set("chargeDirection", "MACHINE");
+        List<String> upgrades = new ArrayList<String>();
+        if (rnd.nextBoolean()) {
+            upgrades.add("speedupgrade::" + (rnd.nextInt(4) + 1) + "::{}\n");
+        }
+        if (rnd.nextBoolean()) {
+            upgrades.add("ejectorupgrade::1::direction: " + (rnd.nextBoolean() ? "UP" : "DOWN") + "\n");
+        }
+        conf.set("upgrades", upgrades);
+        int nInputs = MACHINES[rnd.nextInt(MACHINES.length)].equals("autobuilder") ? 9 : 1;
+        conf.set("inputSlots", items(rnd, nInputs, 0.6));
+        conf.set("outputSlots", items(rnd, 1, 0.5));
+        if (rnd.nextInt(4) == 0) {
+            conf.set("energyCell", "tenkenergycell");
+            conf.set("energyCellCharge", rnd.nextInt(10000) / 7.0);
+        }
+        return conf;
+    }
+
+    // as ItemRouter.freeze()
+    private static YamlConfiguration itemRouter(Random rnd) throws IOException {
+        YamlConfiguration conf = block(rnd);
+        conf.set("moduleList", items(rnd, 9, 0.3));
+        conf.set("buffer", items(rnd, 1, 0.5));
+        return conf;
+    }
+
+    /**
+     * Build a base64 item blob laid out as BukkitSerialization.toBase64()
+     * lays it out: the slot count, then each stack (or null) as a
+     * serialized map of its fields, followed by its attributes.
+     */
+    private static String items(Random rnd, int nSlots, double fillChance) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeInt(nSlots);
+        for (int i = 0; i < nSlots; i++) {
+            if (rnd.nextDouble() >= fillChance) {
+                out.writeObject(null);
+                out.writeInt(0);
+                continue;
+            }
+            Map<String, Object> stack = new HashMap<String, Object>();
+            stack.put("==", "org.bukkit.inventory.ItemStack");
+            if (rnd.nextInt(3) == 0) {
+                // an STB item: a module or component, with a display name and lore
+                Map<String, Object> meta = new HashMap<String, Object>();
+                meta.put("==", "ItemMeta");
+                meta.put("meta-type", "UNSPECIFIC");
+                meta.put("display-name", "\u00a7e" + MODULES[rnd.nextInt(MODULES.length)]);
+                List<String> lore = new ArrayList<String>();
+                lore.add("\u00a77Insert into an Item Router");
+                lore.add("\u00a77R-click block: \u00a7rset direction");
+                meta.put("lore", lore);
+                stack.put("type", "PAPER");
+                stack.put("meta", meta);
+                out.writeObject(stack);
+                // the attribute which marks the item's STB type
+                out.writeInt(1);
+                out.writeObject(UUID.randomUUID() + ";;0;;STB:" + MODULES[rnd.nextInt(MODULES.length)] + ";;0.0;;generic.followRange");
+            } else {
+                stack.put("type", MATERIALS[rnd.nextInt(MATERIALS.length)]);
+                stack.put("amount", rnd.nextInt(64) + 1);
+                out.writeObject(stack);
+                out.writeInt(0);
+            }
+        }
+        out.close();
+        return Base64Coder.encodeLines(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,126 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.Test;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockStateCodecTest {
+    @Test
+    public void scalars() throws IOException {
+        YamlConfiguration conf = new YamlConfiguration();
+        conf.set("string", "hello");
+        conf.set("empty", "");
+        conf.set("unicode", "caf\u00e9 \u2603");
+        conf.set("int", 42);
+        conf.set("negative", -7);
+        conf.set("long", Long.MAX_VALUE);
+        conf.set("double", 1.5);
+        conf.set("true", true);
+        conf.set("false", false);
+        assertRoundTrip(conf);
+    }
+
+    @Test
+    public void stringLists() throws IOException {
+        YamlConfiguration conf = new YamlConfiguration();
+        conf.set("list", Arrays.asList("a", "b", "", "c"));
+        conf.set("emptyList", Collections.<String>emptyList());
+        assertRoundTrip(conf);
+    }
+
+    @Test
+    public void nestedSections() throws IOException {
+        YamlConfiguration conf = new YamlConfiguration();
+        conf.set("top", 1);
+        ConfigurationSection inner = conf.createSection("inner");
+        inner.set("name", "x");
+        inner.createSection("deeper").set("n", 3L);
+        conf.createSection("emptySection");
+        assertRoundTrip(conf);
+    }
+
+    @Test
+    public void itemBlobs() throws IOException {
+        Random rnd = new Random(1);
+        YamlConfiguration conf = new YamlConfiguration();
+        for (int i = 0; i < 10; i++) {
+            // a Java-serialized object stream, base64-encoded as BukkitSerialization does it
+            byte[] blob = new byte[rnd.nextInt(500) + 2];
+            rnd.nextBytes(blob);
+            blob[0] = (byte) 0xAC;
+            blob[1] = (byte) 0xED;
+            conf.set("blob" + i, Base64Coder.encodeLines(blob));
+        }
+        // looks like a blob, but isn't canonical base64, so must come back exactly as it was
+        conf.set("notBlob", "rO0 not base64!");
+        conf.set("notCanonical", "rO0AB");
+        assertRoundTrip(conf);
+    }
+
+    @Test
+    public void otherValues() throws IOException {
+        YamlConfiguration conf = new YamlConfiguration();
+        conf.set("intList", Arrays.asList(1, 2, 3));
+        List<Object> mixed = new ArrayList<Object>();
+        mixed.add("a");
+        mixed.add(2);
+        conf.set("mixedList", mixed);
+        assertRoundTrip(conf);
+    }
+
+    @Test
+    public void empty() throws IOException {
+        assertRoundTrip(new YamlConfiguration());
+    }
+
+    @Test(expected = IOException.class)
+    public void badMagic() throws IOException {
+        byte[] data = BlockStateCodec.encode(new YamlConfiguration());
+        data[0] = 'x';
+        BlockStateCodec.decode(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownVersion() throws IOException {
+        byte[] data = BlockStateCodec.encode(new YamlConfiguration());
+        data[1] = BlockStateCodec.VERSION + 1;
+        BlockStateCodec.decode(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws IOException {
+        YamlConfiguration conf = new YamlConfiguration();
+        conf.set("string", "hello");
+        byte[] data = BlockStateCodec.encode(conf);
+        BlockStateCodec.decode(Arrays.copyOf(data, data.length - 1));
+    }
+
+    private static void assertRoundTrip(YamlConfiguration conf) throws IOException {
+        YamlConfiguration decoded = BlockStateCodec.decode(BlockStateCodec.encode(conf));
+        assertSectionEquals("", conf, decoded);
+    }
+
+    private static void assertSectionEquals(String path, ConfigurationSection expected, ConfigurationSection actual) {
+        assertEquals(path, new ArrayList<String>(expected.getKeys(false)), new ArrayList<String>(actual.getKeys(false)));
+        for (String key : expected.getKeys(false)) {
+            Object e = expected.get(key);
+            Object a = actual.get(key);
+            if (e instanceof ConfigurationSection) {
+                assertTrue(path + key, a instanceof ConfigurationSection);
+                assertSectionEquals(path + key + ".", (ConfigurationSection) e, (ConfigurationSection) a);
+            } else {
+                assertEquals(path + key, e, a);
+            }
+        }
+    }
+}
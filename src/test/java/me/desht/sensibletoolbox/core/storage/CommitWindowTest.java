@@ -0,0 +1,126 @@
+package me.desht.sensibletoolbox.core.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that queueing records through a CommitWindow keeps a batched
+ * store, which applies all of a commit's deletes before its upserts, in
+ * step with the order the records were queued in.
+ */
+public class CommitWindowTest {
+    private static final UUID WORLD = UUID.randomUUID();
+    private static final UUID OTHER_WORLD = UUID.randomUUID();
+
+    private CommitWindow window;
+    private BatchedStore store;
+
+    @Before
+    public void setUp() {
+        window = new CommitWindow();
+        store = new BatchedStore();
+    }
+
+    @Test
+    public void breakDuringCycleThenUnload() {
+        long l = BlockPosition.pack(1, 64, 1);
+        long m = BlockPosition.pack(2, 64, 1);
+        // an earlier tick of the incremental save queues both blocks...
+        queue(WORLD, l, false);
+        queue(WORLD, m, false);
+        // ...then L is broken, and its chunk is unloaded before the cycle ends
+        queue(WORLD, l, true);
+        commit();
+
+        assertFalse("broken block came back", store.contains(WORLD, l));
+        assertTrue(store.contains(WORLD, m));
+        assertEquals(2, store.getCommits());
+    }
+
+    @Test
+    public void replacedAfterBreak() {
+        long l = BlockPosition.pack(-5, 10, 300);
+        queue(WORLD, l, false);
+        commit();
+        queue(WORLD, l, true);
+        queue(WORLD, l, false);
+        commit();
+
+        assertTrue(store.contains(WORLD, l));
+    }
+
+    @Test
+    public void noExtraCommitsForDistinctLocations() {
+        for (int i = 0; i < 100; i++) {
+            queue(WORLD, BlockPosition.pack(i, 64, 0), i % 3 == 0);
+            queue(OTHER_WORLD, BlockPosition.pack(i, 64, 0), false);
+        }
+        commit();
+        assertEquals(1, store.getCommits());
+    }
+
+    @Test
+    public void windowEmptiedByCommit() {
+        long l = BlockPosition.pack(0, 0, 0);
+        queue(WORLD, l, false);
+        commit();
+        queue(WORLD, l, true);
+        commit();
+
+        assertFalse(store.contains(WORLD, l));
+        assertEquals(2, store.getCommits());
+    }
+
+    // the same steps as LocationManager.queueRecord()
+    private void queue(UUID worldID, long pos, boolean delete) {
+        if (!window.add(worldID, pos)) {
+            commit();
+            window.add(worldID, pos);
+        }
+        store.add(worldID, pos, delete);
+    }
+
+    private void commit() {
+        window.clear();
+        store.commit();
+    }
+
+    /**
+     * Applies each commit's deletes, then its upserts, as the batched
+     * SQLite store does.
+     */
+    private static class BatchedStore {
+        private final Set<String> rows = new HashSet<String>();
+        private final List<String> upserts = new ArrayList<String>();
+        private final List<String> deletes = new ArrayList<String>();
+        private int commits;
+
+        void add(UUID worldID, long pos, boolean delete) {
+            (delete ? deletes : upserts).add(worldID + ":" + pos);
+        }
+
+        void commit() {
+            rows.removeAll(deletes);
+            rows.addAll(upserts);
+            deletes.clear();
+            upserts.clear();
+            commits++;
+        }
+
+        boolean contains(UUID worldID, long pos) {
+            return rows.contains(worldID + ":" + pos);
+        }
+
+        int getCommits() {
+            return commits;
+        }
+    }
+}
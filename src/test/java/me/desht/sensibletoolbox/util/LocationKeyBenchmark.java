@@ -0,0 +1,229 @@
+package me.desht.sensibletoolbox.util;
+
+import me.desht.sensibletoolbox.core.storage.BlockPosition;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A microbenchmark of LocationManager's block index and pending update map:
+ * the String-keyed HashMaps they used to be, keyed by formatted locations,
+ * against per-world LongHashMaps keyed by packed positions.  Each of the
+ * register, update and lookup paths is timed over a few thousand blocks
+ * spread across several worlds.
+ * <p/>
+ * This isn't a unit test, so it's not run by the build; run it by hand
+ * after <code>mvn test-compile</code>, with the test and main classes (and
+ * Bukkit) on the classpath:
+ * <pre>
+ * java -cp target/test-classes:target/classes:bukkit.jar me.desht.sensibletoolbox.util.LocationKeyBenchmark
+ * </pre>
+ */
+public class LocationKeyBenchmark {
+    private static final int WORLDS = 3;
+    private static final int BLOCKS = 8000;
+    private static final int ROUNDS = 50;
+    private static final int RUNS = 7;
+
+    private final String[] worldNames = new String[WORLDS];
+    private final UUID[] worldIDs = new UUID[WORLDS];
+    private final int[] world = new int[BLOCKS];
+    private final int[] x = new int[BLOCKS];
+    private final int[] y = new int[BLOCKS];
+    private final int[] z = new int[BLOCKS];
+    private final Object value = new Object();
+    // stops the JIT from dropping lookups whose results aren't used
+    private int sink;
+
+    public static void main(String[] args) {
+        new LocationKeyBenchmark().run();
+    }
+
+    private LocationKeyBenchmark() {
+        Random rnd = new Random(1);
+        for (int i = 0; i < WORLDS; i++) {
+            worldNames[i] = "world" + i;
+            worldIDs[i] = UUID.randomUUID();
+        }
+        for (int i = 0; i < BLOCKS; i++) {
+            world[i] = rnd.nextInt(WORLDS);
+            x[i] = rnd.nextInt(20000) - 10000;
+            y[i] = rnd.nextInt(256);
+            z[i] = rnd.nextInt(20000) - 10000;
+        }
+    }
+
+    private void run() {
+        Scheme[] schemes = { new StringKeys(), new PackedKeys() };
+        String[] ops = { "register", "update", "lookup" };
+        long[][][] times = new long[schemes.length][ops.length][RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            for (int s = 0; s < schemes.length; s++) {
+                for (int op = 0; op < ops.length; op++) {
+                    times[s][op][run] = time(schemes[s], op);
+                }
+            }
+        }
+        System.out.println(String.format("%d blocks in %d worlds, %d rounds per run, median of %d runs after a warmup run",
+                BLOCKS, WORLDS, ROUNDS, RUNS - 1));
+        for (int op = 0; op < ops.length; op++) {
+            double base = median(times[0][op]);
+            for (int s = 0; s < schemes.length; s++) {
+                double ns = median(times[s][op]);
+                System.out.println(String.format("%-9s %-12s %8.1f ns/op  (x%.1f)", ops[op], schemes[s].getName(), ns, base / ns));
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private long time(Scheme scheme, int op) {
+        long total = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            scheme.clear();
+            if (op != 0) {
+                // updates and lookups need the blocks to be registered
+                for (int i = 0; i < BLOCKS; i++) {
+                    scheme.register(i);
+                }
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < BLOCKS; i++) {
+                switch (op) {
+                    case 0:
+                        scheme.register(i);
+                        break;
+                    case 1:
+                        scheme.update(i);
+                        break;
+                    default:
+                        sink += scheme.lookup(i) == null ? 0 : 1;
+                        break;
+                }
+            }
+            total += System.nanoTime() - start;
+        }
+        return total / ((long) ROUNDS * BLOCKS);
+    }
+
+    private static double median(long[] runTimes) {
+        // drop the first run, which includes JIT warmup
+        long[] t = Arrays.copyOfRange(runTimes, 1, runTimes.length);
+        Arrays.sort(t);
+        return t.length % 2 == 1 ? t[t.length / 2] : (t[t.length / 2 - 1] + t[t.length / 2]) / 2.0;
+    }
+
+    private interface Scheme {
+        String getName();
+
+        void clear();
+
+        void register(int i);
+
+        void update(int i);
+
+        Object lookup(int i);
+    }
+
+    /**
+     * The old keying: a String built the way MiscUtil.formatLocation() does,
+     * for every operation.
+     */
+    private class StringKeys implements Scheme {
+        private final Map<UUID, Map<String, Object>> index = new HashMap<UUID, Map<String, Object>>();
+        private final Map<String, Object> pending = new HashMap<String, Object>();
+
+        @Override
+        public String getName() {
+            return "String";
+        }
+
+        @Override
+        public void clear() {
+            index.clear();
+            pending.clear();
+        }
+
+        private String key(int i) {
+            return String.format("%s,%d,%d,%d", worldNames[world[i]], x[i], y[i], z[i]);
+        }
+
+        private Map<String, Object> worldIndex(int i) {
+            Map<String, Object> map = index.get(worldIDs[world[i]]);
+            if (map == null) {
+                map = new HashMap<String, Object>();
+                index.put(worldIDs[world[i]], map);
+            }
+            return map;
+        }
+
+        @Override
+        public void register(int i) {
+            worldIndex(i).put(key(i), value);
+        }
+
+        @Override
+        public void update(int i) {
+            String key = key(i);
+            if (pending.get(key) == null) {
+                pending.put(key, value);
+            }
+        }
+
+        @Override
+        public Object lookup(int i) {
+            return worldIndex(i).get(key(i));
+        }
+    }
+
+    /**
+     * The new keying: per-world LongHashMaps keyed by packed position.
+     */
+    private class PackedKeys implements Scheme {
+        private final Map<UUID, LongHashMap<Object>> index = new HashMap<UUID, LongHashMap<Object>>();
+        private final Map<UUID, LongHashMap<Object>> pending = new HashMap<UUID, LongHashMap<Object>>();
+
+        @Override
+        public String getName() {
+            return "packed long";
+        }
+
+        @Override
+        public void clear() {
+            index.clear();
+            pending.clear();
+        }
+
+        private LongHashMap<Object> worldMap(Map<UUID, LongHashMap<Object>> maps, int i) {
+            LongHashMap<Object> map = maps.get(worldIDs[world[i]]);
+            if (map == null) {
+                map = new LongHashMap<Object>();
+                maps.put(worldIDs[world[i]], map);
+            }
+            return map;
+        }
+
+        @Override
+        public void register(int i) {
+            worldMap(index, i).put(BlockPosition.pack(x[i], y[i], z[i]), value);
+        }
+
+        @Override
+        public void update(int i) {
+            long key = BlockPosition.pack(x[i], y[i], z[i]);
+            LongHashMap<Object> map = worldMap(pending, i);
+            if (map.get(key) == null) {
+                map.put(key, value);
+            }
+        }
+
+        @Override
+        public Object lookup(int i) {
+            return worldMap(index, i).get(BlockPosition.pack(x[i], y[i], z[i]));
+        }
+    }
+}
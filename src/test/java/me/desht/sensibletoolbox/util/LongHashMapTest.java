@@ -0,0 +1,115 @@
+package me.desht.sensibletoolbox.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks LongHashMap against java.util.HashMap under long runs of random
+ * operations.  Keys are mostly drawn from a small range, so that the map
+ * sees plenty of probe collisions and removals from the middle of a probe
+ * run.
+ */
+public class LongHashMapTest {
+    private static final int OPS = 100000;
+
+    @Test
+    public void randomOperations() {
+        for (long seed = 1; seed <= 5; seed++) {
+            runRandom(new Random(seed), seed);
+        }
+    }
+
+    @Test
+    public void extremeKeys() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        long[] keys = { 0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE };
+        for (long key : keys) {
+            assertNull(map.put(key, "v" + key));
+        }
+        assertEquals(keys.length, map.size());
+        for (long key : keys) {
+            assertEquals("v" + key, map.get(key));
+            assertEquals("v" + key, map.remove(key));
+            assertFalse(map.containsKey(key));
+        }
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullValueRejected() {
+        new LongHashMap<String>().put(1, null);
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void modificationDuringIteration() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        map.put(1, "a");
+        map.put(2, "b");
+        Iterator<String> iter = map.values().iterator();
+        iter.next();
+        map.put(3, "c");
+        iter.next();
+    }
+
+    private void runRandom(Random rnd, long seed) {
+        LongHashMap<Long> map = new LongHashMap<Long>(rnd.nextInt(64));
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        for (int i = 0; i < OPS; i++) {
+            long key = randomKey(rnd);
+            String where = "seed " + seed + ", op " + i + ", key " + key;
+            int op = rnd.nextInt(100);
+            if (op < 45) {
+                long value = rnd.nextLong();
+                assertEquals(where, expected.put(key, value), map.put(key, value));
+            } else if (op < 80) {
+                assertEquals(where, expected.remove(key), map.remove(key));
+            } else if (op < 95) {
+                assertEquals(where, expected.get(key), map.get(key));
+                assertEquals(where, expected.containsKey(key), map.containsKey(key));
+            } else if (op < 96) {
+                assertSameValues(where, expected, map);
+            } else if (rnd.nextInt(50) == 0) {
+                map.clear();
+                expected.clear();
+            }
+            assertEquals(where, expected.size(), map.size());
+            assertEquals(where, expected.isEmpty(), map.isEmpty());
+        }
+        assertSameValues("seed " + seed + ", at end", expected, map);
+        for (Long key : expected.keySet()) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    private static long randomKey(Random rnd) {
+        switch (rnd.nextInt(4)) {
+            case 0:
+                return rnd.nextLong();
+            case 1:
+                // packed block positions in a small area (see BlockPosition.pack()), as the map is mostly used for
+                int x = rnd.nextInt(64) - 32, y = rnd.nextInt(256), z = rnd.nextInt(64) - 32;
+                return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+            default:
+                return rnd.nextInt(512) - 256;
+        }
+    }
+
+    private static void assertSameValues(String where, Map<Long, Long> expected, LongHashMap<Long> map) {
+        List<Long> a = new ArrayList<Long>(expected.values());
+        List<Long> b = new ArrayList<Long>(map.values());
+        assertEquals(where, map.size(), b.size());
+        Collections.sort(a);
+        Collections.sort(b);
+        assertEquals(where, a, b);
+    }
+}
@@ -0,0 +1,94 @@
+package me.desht.sensibletoolbox.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks LongHashSet against java.util.HashSet under long runs of random
+ * operations.  Keys are mostly drawn from a small range, so that the set
+ * sees plenty of probe collisions and removals from the middle of a probe
+ * run.
+ */
+public class LongHashSetTest {
+    private static final int OPS = 100000;
+
+    @Test
+    public void randomOperations() {
+        for (long seed = 1; seed <= 5; seed++) {
+            runRandom(new Random(seed), seed);
+        }
+    }
+
+    @Test
+    public void extremeKeys() {
+        LongHashSet set = new LongHashSet();
+        long[] keys = { 0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE };
+        for (long key : keys) {
+            assertTrue(set.add(key));
+            assertFalse(set.add(key));
+        }
+        assertEquals(keys.length, set.size());
+        for (long key : keys) {
+            assertTrue(set.contains(key));
+            assertTrue(set.remove(key));
+            assertFalse(set.remove(key));
+        }
+        assertTrue(set.isEmpty());
+    }
+
+    private void runRandom(Random rnd, long seed) {
+        LongHashSet set = new LongHashSet(rnd.nextInt(64));
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < OPS; i++) {
+            long key = randomKey(rnd);
+            String where = "seed " + seed + ", op " + i + ", key " + key;
+            int op = rnd.nextInt(100);
+            if (op < 45) {
+                assertEquals(where, expected.add(key), set.add(key));
+            } else if (op < 80) {
+                assertEquals(where, expected.remove(key), set.remove(key));
+            } else if (op < 96) {
+                assertEquals(where, expected.contains(key), set.contains(key));
+            } else if (op < 97) {
+                assertSameKeys(where, expected, set);
+            } else if (rnd.nextInt(50) == 0) {
+                set.clear();
+                expected.clear();
+            }
+            assertEquals(where, expected.size(), set.size());
+            assertEquals(where, expected.isEmpty(), set.isEmpty());
+        }
+        assertSameKeys("seed " + seed + ", at end", expected, set);
+    }
+
+    private static long randomKey(Random rnd) {
+        switch (rnd.nextInt(4)) {
+            case 0:
+                return rnd.nextLong();
+            case 1:
+                // packed block positions in a small area (see BlockPosition.pack()), as the set is mostly used for
+                int x = rnd.nextInt(64) - 32, y = rnd.nextInt(256), z = rnd.nextInt(64) - 32;
+                return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+            default:
+                return rnd.nextInt(512) - 256;
+        }
+    }
+
+    private static void assertSameKeys(String where, Set<Long> expected, LongHashSet set) {
+        long[] a = new long[expected.size()];
+        int n = 0;
+        for (long key : expected) {
+            a[n++] = key;
+        }
+        long[] b = set.toArray();
+        Arrays.sort(a);
+        Arrays.sort(b);
+        assertArrayEquals(where, a, b);
+    }
+}